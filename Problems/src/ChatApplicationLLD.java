@@ -1,7 +1,11 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 class ChatUser{
     String username;
@@ -10,9 +14,363 @@ class ChatUser{
     }
 }
 
+class ChatMessage{
+    long id;
+    String sender;
+    String text;
+    long timestamp;
+    public ChatMessage(long id, String sender, String text, long timestamp){
+        this.id = id;
+        this.sender = sender;
+        this.text = text;
+        this.timestamp = timestamp;
+    }
+}
+
+// Postings for one term, encoded as varint(docDelta) varint(positionCount) varint(positionDelta)...
+class PostingsList{
+    private byte[] bytes = new byte[16];
+    private int length;
+    private int docCount;
+    private long lastDocId = -1;
+
+    public void add(long docId, int[] positions, int positionCount){
+        long delta = lastDocId < 0 ? docId : docId - lastDocId;
+        writeVarLong(delta);
+        writeVarLong(positionCount);
+        int lastPosition = 0;
+        for(int i = 0; i < positionCount; i++){
+            writeVarLong(positions[i] - lastPosition);
+            lastPosition = positions[i];
+        }
+        lastDocId = docId;
+        docCount++;
+    }
+
+    public int getDocCount(){
+        return docCount;
+    }
+    public long getLastDocId(){
+        return lastDocId;
+    }
+    public void trim(){
+        bytes = Arrays.copyOf(bytes, length);
+    }
+    public PostingsCursor cursor(){
+        return new PostingsCursor(bytes, length);
+    }
+
+    private void writeVarLong(long value){
+        if(length + 10 > bytes.length){
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        while((value & ~0x7FL) != 0){
+            bytes[length++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte)value;
+    }
+}
+
+class PostingsCursor{
+    private final byte[] bytes;
+    private final int length;
+    private int offset;
+    private long docId = -1;
+    private int[] positions = new int[4];
+    private int positionCount;
+
+    public PostingsCursor(byte[] bytes, int length){
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    public boolean next(){
+        if(offset >= length){
+            docId = Long.MAX_VALUE;
+            return false;
+        }
+        long delta = readVarLong();
+        docId = docId < 0 ? delta : docId + delta;
+        positionCount = (int)readVarLong();
+        if(positions.length < positionCount){
+            positions = new int[Math.max(positionCount, positions.length * 2)];
+        }
+        int position = 0;
+        for(int i = 0; i < positionCount; i++){
+            position += (int)readVarLong();
+            positions[i] = position;
+        }
+        return true;
+    }
+
+    // Moves to the first doc >= target, returns false once the list is exhausted
+    public boolean advance(long target){
+        while(docId < target){
+            if(!next()) return false;
+        }
+        return docId != Long.MAX_VALUE;
+    }
+
+    public long docId(){
+        return docId;
+    }
+    public boolean hasPosition(int position){
+        return Arrays.binarySearch(positions, 0, positionCount, position) >= 0;
+    }
+    public int positionCount(){
+        return positionCount;
+    }
+    public int[] positions(){
+        return positions;
+    }
+
+    private long readVarLong(){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = bytes[offset++];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
+
+class IndexSegment{
+    final Map<String, PostingsList> postings;
+    final long minDocId;
+    final long maxDocId;
+
+    public IndexSegment(Map<String, PostingsList> postings, long minDocId, long maxDocId){
+        this.postings = postings;
+        this.minDocId = minDocId;
+        this.maxDocId = maxDocId;
+    }
+
+    public int size(){
+        return (int)(maxDocId - minDocId + 1);
+    }
+
+    // Segments cover disjoint, ordered doc ranges so postings can simply be appended
+    public static IndexSegment merge(IndexSegment older, IndexSegment newer){
+        Map<String, PostingsList> merged = new HashMap<>();
+        appendAll(merged, older);
+        appendAll(merged, newer);
+        for(PostingsList list : merged.values()){
+            list.trim();
+        }
+        return new IndexSegment(merged, older.minDocId, newer.maxDocId);
+    }
+
+    public static IndexSegment copyOf(IndexSegment segment){
+        Map<String, PostingsList> copy = new HashMap<>();
+        appendAll(copy, segment);
+        return new IndexSegment(copy, segment.minDocId, segment.maxDocId);
+    }
+
+    private static void appendAll(Map<String, PostingsList> target, IndexSegment segment){
+        for(Map.Entry<String, PostingsList> entry : segment.postings.entrySet()){
+            PostingsList list = target.computeIfAbsent(entry.getKey(), k -> new PostingsList());
+            PostingsCursor cursor = entry.getValue().cursor();
+            while(cursor.next()){
+                list.add(cursor.docId(), cursor.positions(), cursor.positionCount());
+            }
+        }
+    }
+}
+
+class MessageSearchIndex{
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int MAX_SEGMENTS = 8;
+    private static final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chat-index-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<ChatMessage> messages = new ArrayList<>();
+    // Real timestamps by doc id, and their running maximum which is sorted even when messages
+    // arrive out of order; maxLateness is how far any message fell behind that maximum
+    private long[] timestamps = new long[SEGMENT_SIZE];
+    private long[] maxTimestamps = new long[SEGMENT_SIZE];
+    private long maxLateness;
+    private volatile List<IndexSegment> sealedSegments = List.of();
+    private Map<String, PostingsList> activePostings = new HashMap<>();
+    private long activeMinDocId;
+    private boolean mergeScheduled;
+
+    public synchronized ChatMessage addMessage(String sender, String text, long timestamp){
+        long docId = messages.size();
+        ChatMessage message = new ChatMessage(docId, sender, text, timestamp);
+        messages.add(message);
+        if(docId == timestamps.length){
+            timestamps = Arrays.copyOf(timestamps, timestamps.length * 2);
+            maxTimestamps = Arrays.copyOf(maxTimestamps, maxTimestamps.length * 2);
+        }
+        long previous = docId == 0 ? Long.MIN_VALUE : maxTimestamps[(int)docId - 1];
+        timestamps[(int)docId] = timestamp;
+        maxTimestamps[(int)docId] = Math.max(timestamp, previous);
+        maxLateness = Math.max(maxLateness, maxTimestamps[(int)docId] - timestamp);
+
+        Map<String, List<Integer>> termPositions = new HashMap<>();
+        String[] tokens = tokenize(text);
+        for(int i = 0; i < tokens.length; i++){
+            termPositions.computeIfAbsent(tokens[i], k -> new ArrayList<>()).add(i);
+        }
+        for(Map.Entry<String, List<Integer>> entry : termPositions.entrySet()){
+            int[] positions = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+            activePostings.computeIfAbsent(entry.getKey(), k -> new PostingsList()).add(docId, positions, positions.length);
+        }
+        if(docId - activeMinDocId + 1 >= SEGMENT_SIZE){
+            sealActiveSegment(docId);
+        }
+        return message;
+    }
+
+    public List<ChatMessage> search(String query, long fromTime, long toTime){
+        String[] terms = tokenize(query);
+        boolean phrase = query.trim().startsWith("\"") && query.trim().endsWith("\"");
+        List<ChatMessage> results = new ArrayList<>();
+        if(terms.length == 0) return results;
+
+        List<IndexSegment> segments;
+        long[] docTimes;
+        long fromDoc;
+        long toDoc;
+        synchronized(this){
+            segments = new ArrayList<>(sealedSegments);
+            if(messages.size() > activeMinDocId){
+                // Snapshot the tail so readers never see a half-written postings list
+                segments.add(snapshotActive());
+            }
+            // The running maximum only bounds the doc range: a message in range can't come before
+            // the first doc whose maximum reaches fromTime, nor after the last one within toTime
+            // plus the worst lateness seen. Real timestamps decide inside that range.
+            docTimes = timestamps;
+            fromDoc = lowerBound(fromTime);
+            toDoc = toTime >= Long.MAX_VALUE - maxLateness ? messages.size() - 1 : lowerBound(toTime + maxLateness + 1) - 1;
+        }
+
+        for(IndexSegment segment : segments){
+            if(segment.maxDocId < fromDoc || segment.minDocId > toDoc) continue;
+            searchSegment(segment, terms, phrase, fromDoc, toDoc, docTimes, fromTime, toTime, results);
+        }
+        return results;
+    }
+
+    private void searchSegment(IndexSegment segment, String[] terms, boolean phrase, long fromDoc, long toDoc,
+                               long[] docTimes, long fromTime, long toTime, List<ChatMessage> results){
+        PostingsCursor[] cursors = new PostingsCursor[terms.length];
+        for(int i = 0; i < terms.length; i++){
+            PostingsList list = segment.postings.get(terms[i]);
+            if(list == null) return;
+            cursors[i] = list.cursor();
+        }
+        long candidate = fromDoc;
+        while(true){
+            boolean aligned = true;
+            for(PostingsCursor cursor : cursors){
+                if(!cursor.advance(candidate)) return;
+                if(cursor.docId() > candidate){
+                    candidate = cursor.docId();
+                    aligned = false;
+                }
+            }
+            if(candidate > toDoc) return;
+            if(aligned){
+                long time = docTimes[(int)candidate];
+                if(time >= fromTime && time <= toTime && (!phrase || matchesPhrase(cursors))){
+                    results.add(messageAt(candidate));
+                }
+                candidate++;
+            }
+        }
+    }
+
+    private boolean matchesPhrase(PostingsCursor[] cursors){
+        PostingsCursor first = cursors[0];
+        for(int p = 0; p < first.positionCount(); p++){
+            int start = first.positions()[p];
+            boolean match = true;
+            for(int i = 1; i < cursors.length && match; i++){
+                match = cursors[i].hasPosition(start + i);
+            }
+            if(match) return true;
+        }
+        return false;
+    }
+
+    private synchronized ChatMessage messageAt(long docId){
+        return messages.get((int)docId);
+    }
+
+    private long lowerBound(long time){
+        int low = 0;
+        int high = messages.size();
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(maxTimestamps[mid] < time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private IndexSegment snapshotActive(){
+        return IndexSegment.copyOf(new IndexSegment(activePostings, activeMinDocId, messages.size() - 1));
+    }
+
+    private void sealActiveSegment(long lastDocId){
+        for(PostingsList list : activePostings.values()){
+            list.trim();
+        }
+        List<IndexSegment> segments = new ArrayList<>(sealedSegments);
+        segments.add(new IndexSegment(activePostings, activeMinDocId, lastDocId));
+        sealedSegments = List.copyOf(segments);
+        activePostings = new HashMap<>();
+        activeMinDocId = lastDocId + 1;
+        if(segments.size() > MAX_SEGMENTS && !mergeScheduled){
+            mergeScheduled = true;
+            merger.submit(this::mergeSmallestNeighbours);
+        }
+    }
+
+    private void mergeSmallestNeighbours(){
+        List<IndexSegment> segments = sealedSegments;
+        int best = 0;
+        for(int i = 1; i + 1 < segments.size(); i++){
+            if(segments.get(i).size() + segments.get(i + 1).size() < segments.get(best).size() + segments.get(best + 1).size()){
+                best = i;
+            }
+        }
+        IndexSegment older = segments.get(best);
+        IndexSegment newer = segments.get(best + 1);
+        IndexSegment merged = IndexSegment.merge(older, newer);
+        synchronized(this){
+            // Segments are only appended while the merge runs, so the pair is still at the same index
+            List<IndexSegment> current = new ArrayList<>(sealedSegments);
+            current.remove(best + 1);
+            current.set(best, merged);
+            sealedSegments = List.copyOf(current);
+            mergeScheduled = false;
+            if(current.size() > MAX_SEGMENTS){
+                mergeScheduled = true;
+                merger.submit(this::mergeSmallestNeighbours);
+            }
+        }
+    }
+
+    private static String[] tokenize(String text){
+        String normalized = text.toLowerCase().replaceAll("[^a-z0-9]+", " ").trim();
+        return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
+}
+
 class Mediator{
     HashMap<String, ChatUser> chatUsers = new HashMap<>();
     HashMap<ChatUser, HashSet<ChatUser>> mutedUsers = new HashMap<>();
+    MessageSearchIndex messageIndex = new MessageSearchIndex();
 
     public Mediator(){}
 
@@ -48,6 +406,7 @@ class Mediator{
     public void SendToAll(String username, String message){
         ChatUser chatUser1 = getChatUser(username);
         if(chatUser1 == null){ return;}
+        messageIndex.addMessage(username, message, System.currentTimeMillis());
         for(ChatUser user : chatUsers.values()){
             if(user == chatUser1 || isMuted(chatUser1, user)){continue;}
             System.out.println("Message For: "+user.username+ " From: "+username + " : "+message);
@@ -85,6 +444,10 @@ class Mediator{
         }
     }
 
+    public List<ChatMessage> searchMessages(String query, long fromTime, long toTime){
+        return messageIndex.search(query, fromTime, toTime);
+    }
+
 
 }
 
@@ -144,6 +507,10 @@ class ChatService{
         Mediator mediator = chatRoomManager.getChatRoom(chatRoom);
         mediator.unmuteUser(username1, username2);
     }
+    public List<ChatMessage> searchMessages(String chatRoom, String query, long fromTime, long toTime){
+        Mediator mediator = chatRoomManager.getChatRoom(chatRoom);
+        return mediator.searchMessages(query, fromTime, toTime);
+    }
 }
 
 class ChatController{
@@ -173,6 +540,9 @@ class ChatController{
     public void unmuteUser(String chatRoom, String username1, String username2){
         chatService.unmuteUser(chatRoom, username1, username2);
     }
+    public List<ChatMessage> searchMessages(String chatRoom, String query, long fromTime, long toTime){
+        return chatService.searchMessages(chatRoom, query, fromTime, toTime);
+    }
 
 
 }
@@ -207,5 +577,12 @@ public class ChatApplicationLLD {
         controller.SendTo("ChatRoom1", "devanshabrol", "jaadu", "Hi Bro!");
 
         controller.SendToAll("ChatRoom1", "devanshabrol", "Good Bye!");
+
+        for(ChatMessage message : controller.searchMessages("ChatRoom1", "hi everyone", 0, Long.MAX_VALUE)){
+            System.out.println("Search Hit: "+message.sender+" : "+message.text);
+        }
+        for(ChatMessage message : controller.searchMessages("ChatRoom1", "\"good bye\"", 0, Long.MAX_VALUE)){
+            System.out.println("Phrase Hit: "+message.sender+" : "+message.text);
+        }
     }
 }
@@ -1,7 +1,23 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 enum Direction {
     UP,
@@ -31,25 +47,178 @@ class ElevatorStatus {
         this.direction = direction;
     }
 }
+// Pending stops of one car and the order they are served in
+interface StopScheduler {
+    // direction is the sweep that should serve the stop: the hall call's direction, or for a stop
+    // chosen inside the car, the way the car has to go to reach it
+    void add(int floor, Direction direction);
+    // Clears the stop for one sweep; IDLE clears it for both
+    void remove(int floor, Direction direction);
+    // Whether the car still has to stop here for that sweep; IDLE means for either
+    boolean hasStop(int floor, Direction direction);
+    Integer next(int currentFloor, Direction direction);
+    boolean isEmpty();
+    // Number of stops in [fromFloor, toFloor]
+    int countBetween(int fromFloor, int toFloor);
+    // Number of stops, both directions counted separately
+    int size();
+    // Highest stop for UP, lowest for DOWN, -1 when there are none
+    int farthest(Direction direction);
+}
+
+// Stops in request order, the original behaviour; the bitset only makes the duplicate check O(1)
+class FifoStopScheduler implements StopScheduler {
+    private final Queue<Integer> targetFloors = new LinkedList<>();
+    private final BitSet queued = new BitSet();
+
+    @Override
+    public void add(int floor, Direction direction) {
+        if (!queued.get(floor)) {
+            queued.set(floor);
+            targetFloors.add(floor);
+        }
+    }
+    // One stop per floor whatever the direction, so a stop serves both ways
+    @Override
+    public void remove(int floor, Direction direction) {
+        if (queued.get(floor)) {
+            queued.clear(floor);
+            targetFloors.remove(floor);
+        }
+    }
+    @Override
+    public boolean hasStop(int floor, Direction direction) {
+        return queued.get(floor);
+    }
+    @Override
+    public Integer next(int currentFloor, Direction direction) {
+        return targetFloors.peek();
+    }
+    @Override
+    public boolean isEmpty() {
+        return targetFloors.isEmpty();
+    }
+    @Override
+    public int countBetween(int fromFloor, int toFloor) {
+        return countBits(queued, fromFloor, toFloor);
+    }
+    @Override
+    public int size() {
+        return targetFloors.size();
+    }
+    @Override
+    public int farthest(Direction direction) {
+        return direction == Direction.DOWN ? queued.nextSetBit(0) : queued.length() - 1;
+    }
+
+    static int countBits(BitSet bits, int fromFloor, int toFloor) {
+        int from = Math.max(0, fromFloor);
+        // toFloor + 1 would overflow for Integer.MAX_VALUE
+        int to = toFloor >= bits.length() ? bits.length() : toFloor + 1;
+        return from < to ? bits.get(from, to).cardinality() : 0;
+    }
+}
+
+// LOOK: keep going while there are stops ahead for the current sweep, then turn. Up and down stops
+// are bitsets over floors, so adding (and deduplicating) a stop is a bit set and finding the next
+// one is a nextSetBit/previousSetBit over a few words. A down call above the car is served by going
+// up to the highest such call and sweeping down from there, and vice versa.
+class LookStopScheduler implements StopScheduler {
+    private final BitSet upStops = new BitSet();
+    private final BitSet downStops = new BitSet();
+
+    @Override
+    public void add(int floor, Direction direction) {
+        (direction == Direction.DOWN ? downStops : upStops).set(floor);
+    }
+    @Override
+    public void remove(int floor, Direction direction) {
+        if (direction != Direction.DOWN) upStops.clear(floor);
+        if (direction != Direction.UP) downStops.clear(floor);
+    }
+    @Override
+    public boolean hasStop(int floor, Direction direction) {
+        return direction != Direction.DOWN && upStops.get(floor) || direction != Direction.UP && downStops.get(floor);
+    }
+    @Override
+    public Integer next(int currentFloor, Direction direction) {
+        if (isEmpty()) return null;
+        if (direction == Direction.IDLE) {
+            int above = Math.min(bitOrMax(upStops.nextSetBit(currentFloor)), bitOrMax(downStops.nextSetBit(currentFloor)));
+            int below = Math.max(upStops.previousSetBit(currentFloor), downStops.previousSetBit(currentFloor));
+            if (below < 0) return above;
+            if (above == Integer.MAX_VALUE) return below;
+            return above - currentFloor <= currentFloor - below ? above : below;
+        }
+        if (direction == Direction.UP) {
+            int ahead = upStops.nextSetBit(currentFloor);
+            if (ahead >= 0) return ahead;
+            int highestDown = downStops.length() - 1;
+            if (highestDown >= 0) return highestDown;
+            return upStops.nextSetBit(0);
+        }
+        int ahead = downStops.previousSetBit(currentFloor);
+        if (ahead >= 0) return ahead;
+        int lowestUp = upStops.nextSetBit(0);
+        if (lowestUp >= 0) return lowestUp;
+        return downStops.length() - 1;
+    }
+    @Override
+    public boolean isEmpty() {
+        return upStops.isEmpty() && downStops.isEmpty();
+    }
+    @Override
+    public int countBetween(int fromFloor, int toFloor) {
+        return FifoStopScheduler.countBits(upStops, fromFloor, toFloor) + FifoStopScheduler.countBits(downStops, fromFloor, toFloor);
+    }
+    @Override
+    public int size() {
+        return upStops.cardinality() + downStops.cardinality();
+    }
+    @Override
+    public int farthest(Direction direction) {
+        if (direction == Direction.DOWN) {
+            int up = upStops.nextSetBit(0);
+            int down = downStops.nextSetBit(0);
+            return up < 0 ? down : down < 0 ? up : Math.min(up, down);
+        }
+        return Math.max(upStops.length(), downStops.length()) - 1;
+    }
+
+    private static int bitOrMax(int bit) {
+        return bit < 0 ? Integer.MAX_VALUE : bit;
+    }
+}
+
 class ElevatorCar {
-    private ElevatorStatus status;
-    private final Queue<Integer> targetFloors;
+    // Replaced rather than mutated, so another thread always reads a consistent floor and direction
+    private volatile ElevatorStatus status;
+    private final StopScheduler targetFloors;
     private int startingFloor;
 
     public ElevatorCar(int startingFloor){
+        this(startingFloor, new LookStopScheduler());
+    }
+
+    public ElevatorCar(int startingFloor, StopScheduler targetFloors){
         this.startingFloor = startingFloor;
-        targetFloors = new LinkedList<>();
+        this.status = new ElevatorStatus(startingFloor, Direction.IDLE);
+        this.targetFloors = targetFloors;
     }
 
     public ElevatorStatus getStatus() {
         return status;
     }
 
+    // A stop chosen inside the car
     public void addFloorRequest(int floor){
-        if(!targetFloors.contains(floor)) {
-            targetFloors.add(floor);
-            updateDirection(floor);
-        }
+        addFloorRequest(floor, floor >= status.getCurrentFloor() ? Direction.UP : Direction.DOWN);
+    }
+
+    // A hall call: direction is where the waiting passenger wants to go
+    public void addFloorRequest(int floor, Direction direction){
+        targetFloors.add(floor, direction);
+        updateDirection(getNextStop());
     }
     private void updateDirection(int targetFloor){
         if(status.getCurrentFloor() > targetFloor){
@@ -68,6 +237,48 @@ class ElevatorCar {
     public int getCurrentFloor(){
         return status.getCurrentFloor();
     }
+
+    // The stop the car is heading for, or null when it has none
+    public Integer getNextStop(){
+        return targetFloors.next(status.getCurrentFloor(), status.getDirection());
+    }
+    public int getStopsBetween(int fromFloor, int toFloor){
+        return targetFloors.countBetween(Math.min(fromFloor, toFloor), Math.max(fromFloor, toFloor));
+    }
+    public int getStopCount(){
+        return targetFloors.size();
+    }
+    public int getFarthestStop(Direction direction){
+        return targetFloors.farthest(direction);
+    }
+    public boolean hasFloorRequest(int floor, Direction direction){
+        return targetFloors.hasStop(floor, direction);
+    }
+    // Drops a hall call that was handed to another car
+    public void removeFloorRequest(int floor, Direction direction){
+        targetFloors.remove(floor, direction);
+        Integer next = getNextStop();
+        if(next != null) updateDirection(next);
+    }
+    // Position update while travelling between stops
+    public void moveTo(int floor){
+        status = new ElevatorStatus(floor, status.getDirection());
+    }
+    // Serves the stop at this floor for the sweep the car arrived on (IDLE: it was already standing
+    // here) and points the car at the following one. The stop for the other direction is only
+    // served too when the car turns here; otherwise it comes back for it on the return sweep.
+    public void arriveAt(int floor, Direction sweep){
+        status = new ElevatorStatus(floor, status.getDirection());
+        targetFloors.remove(floor, sweep);
+        if (sweep != Direction.IDLE) {
+            Integer ahead = targetFloors.next(floor, sweep);
+            if (ahead == null || (ahead - floor) * (sweep == Direction.UP ? 1 : -1) <= 0) {
+                targetFloors.remove(floor, Direction.IDLE);
+            }
+        }
+        Integer next = getNextStop();
+        if(next != null) updateDirection(next);
+    }
 }
 
 
@@ -82,7 +293,7 @@ class ElevatorDispatch {
         if(selectedElevator != null){
             //This isn't the user request, this is a command to stop the elevator
             //At that floor to pick the user
-            selectedElevator.addFloorRequest(floor);
+            selectedElevator.addFloorRequest(floor, direction);
         }
     }
 
@@ -122,31 +333,822 @@ class ShortestSeekTimeFirstStrategy implements DispatchStrategy {
         return bestElevator;
     }
 }
+// Cars serving a range of floors, e.g. low-rise and high-rise banks that all stop at the lobby
+class ElevatorZone {
+    private final int lowestFloor;
+    private final int highestFloor;
+    private final List<ElevatorCar> cars;
+
+    public ElevatorZone(int lowestFloor, int highestFloor, List<ElevatorCar> cars) {
+        this.lowestFloor = lowestFloor;
+        this.highestFloor = highestFloor;
+        this.cars = cars;
+    }
+
+    public boolean serves(int floor) {
+        return floor >= lowestFloor && floor <= highestFloor;
+    }
+    public List<ElevatorCar> getCars() {
+        return cars;
+    }
+}
+
+// Picks the car with the lowest estimated time to arrive, counting travel along its LOOK sweep and
+// a door cycle for every stop it makes on the way. Every car is considered, whatever its state;
+// with zones only cars whose zone serves the floor are.
+class EtaDispatchStrategy implements DispatchStrategy {
+    private final long floorMillis;
+    private final long stopMillis;
+    private final List<ElevatorZone> zones;
+
+    public EtaDispatchStrategy() {
+        this(ElevatorSimulation.FLOOR_MILLIS, ElevatorSimulation.DOOR_MILLIS, new ArrayList<>());
+    }
+
+    public EtaDispatchStrategy(long floorMillis, long stopMillis, List<ElevatorZone> zones) {
+        this.floorMillis = floorMillis;
+        this.stopMillis = stopMillis;
+        this.zones = zones;
+    }
+
+    @Override
+    public ElevatorCar selectElevator(List<ElevatorCar> elevators, int floor, Direction direction) {
+        if (zones.isEmpty()) {
+            return fastest(elevators, floor, direction, null);
+        }
+        ElevatorCar best = null;
+        for (ElevatorZone zone : zones) {
+            if (zone.serves(floor)) {
+                best = fastest(zone.getCars(), floor, direction, best);
+            }
+        }
+        return best;
+    }
+
+    public boolean canServe(ElevatorCar car, int floor) {
+        if (zones.isEmpty()) return true;
+        for (ElevatorZone zone : zones) {
+            if (zone.serves(floor) && zone.getCars().contains(car)) return true;
+        }
+        return false;
+    }
+
+    private ElevatorCar fastest(List<ElevatorCar> cars, int floor, Direction direction, ElevatorCar best) {
+        long bestEta = best == null ? Long.MAX_VALUE : estimateMillis(best, floor, direction);
+        for (ElevatorCar car : cars) {
+            long eta = estimateMillis(car, floor, direction);
+            if (eta < bestEta) {
+                bestEta = eta;
+                best = car;
+            }
+        }
+        return best;
+    }
+
+    public long estimateMillis(ElevatorCar car, int floor, Direction direction) {
+        int current = car.getCurrentFloor();
+        if (car.isIdle()) {
+            return Math.abs(floor - current) * floorMillis;
+        }
+        boolean up = car.getCurrentDirection() != Direction.DOWN;
+        int sign = up ? 1 : -1;
+        Direction sweep = up ? Direction.UP : Direction.DOWN;
+        Direction opposite = up ? Direction.DOWN : Direction.UP;
+        long distance;
+        int stops;
+        if ((floor - current) * sign > 0 && direction != opposite) {
+            // Ahead on the current sweep; a busy car still at the floor is already pulling away
+            distance = Math.abs(floor - current);
+            stops = car.getStopsBetween(current, floor - sign);
+        } else {
+            int turn = car.getFarthestStop(sweep);
+            turn = turn < 0 || (turn - current) * sign < 0 ? current : turn;
+            if (direction == opposite || (floor - current) * sign < 0 && direction == Direction.IDLE) {
+                // Served on the way back after turning at the farthest stop
+                if ((floor - turn) * sign > 0) turn = floor;
+                distance = Math.abs(turn - current) + Math.abs(turn - floor);
+                stops = car.getStopsBetween(current, turn) + car.getStopsBetween(turn - sign, floor + sign);
+            } else {
+                // Behind the car in its own direction: out to the turn, back past the floor, and up again
+                int otherTurn = car.getFarthestStop(opposite);
+                otherTurn = otherTurn < 0 || (otherTurn - floor) * sign > 0 ? floor : otherTurn;
+                distance = Math.abs(turn - current) + Math.abs(turn - otherTurn) + Math.abs(floor - otherTurn);
+                stops = car.getStopCount();
+            }
+        }
+        return distance * floorMillis + stops * stopMillis;
+    }
+}
+
+enum ElevatorRequestType {
+    HALL_CALL,
+    CAR_CALL,
+    CAR_MOVED,
+    CAR_ARRIVED
+}
+
+class ElevatorRequest {
+    final ElevatorRequestType type;
+    final int car;
+    final int floor;
+    final Direction direction;
+
+    ElevatorRequest(ElevatorRequestType type, int car, int floor, Direction direction) {
+        this.type = type;
+        this.car = car;
+        this.floor = floor;
+        this.direction = direction;
+    }
+}
+
+// Hall panels, car panels and car controllers on any thread push requests onto a lock-free queue;
+// one dispatcher thread owns every ElevatorCar and applies them, so cars need no locking. A hall
+// call already waiting for a car is deduplicated with a CAS on a bitmap before it reaches the
+// queue. Open hall calls are re-evaluated every reevaluateMillis and handed to another car when its
+// ETA beats the assigned car's by more than reassignMarginMillis.
+class HallCallDispatcher {
+    private final List<ElevatorCar> cars;
+    private final Map<ElevatorCar, Integer> carIndex = new IdentityHashMap<>();
+    private final EtaDispatchStrategy strategy;
+    private final long reevaluateMillis;
+    private final long reassignMarginMillis;
+    private final ConcurrentLinkedQueue<ElevatorRequest> requests = new ConcurrentLinkedQueue<>();
+    private final AtomicLongArray pendingHallCalls;
+    // Dispatcher thread only: open hall call (floor * 2 + direction) to the car serving it, and
+    // each car's own stops, which a reassignment must not remove
+    private final Map<Integer, Integer> assignedCar = new HashMap<>();
+    private final BitSet[] carCalls;
+    // Each car's next stop (-1 for none), published for car controllers on other threads
+    private final AtomicIntegerArray nextStops;
+    // Moves and arrivals applied per car, published after its next stop so a controller can tell
+    // when the stop it reads already reflects its own last report
+    private final AtomicLongArray appliedReports;
+    private final AtomicLong reassignments = new AtomicLong();
+    private Thread dispatcher;
+    private volatile boolean running;
+
+    public HallCallDispatcher(List<ElevatorCar> cars, int floors, EtaDispatchStrategy strategy, long reevaluateMillis, long reassignMarginMillis) {
+        this.cars = cars;
+        this.strategy = strategy;
+        this.reevaluateMillis = reevaluateMillis;
+        this.reassignMarginMillis = reassignMarginMillis;
+        this.pendingHallCalls = new AtomicLongArray((floors * 2 + 63) >>> 6);
+        this.carCalls = new BitSet[cars.size()];
+        this.nextStops = new AtomicIntegerArray(cars.size());
+        this.appliedReports = new AtomicLongArray(cars.size());
+        for (int car = 0; car < cars.size(); car++) {
+            carIndex.put(cars.get(car), car);
+            carCalls[car] = new BitSet();
+            publishNextStop(car);
+        }
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        dispatcher = new Thread(this::dispatchLoop, "hall-call-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        dispatcher.join();
+    }
+
+    // Returns false when the same call is already waiting for a car
+    public boolean submitHallCall(int floor, Direction direction) {
+        int key = hallCallKey(floor, direction);
+        long bit = 1L << key;
+        if ((pendingHallCalls.getAndUpdate(key >>> 6, bits -> bits | bit) & bit) != 0) return false;
+        enqueue(new ElevatorRequest(ElevatorRequestType.HALL_CALL, -1, floor, direction));
+        return true;
+    }
+
+    public void submitCarCall(ElevatorCar car, int floor) {
+        enqueue(new ElevatorRequest(ElevatorRequestType.CAR_CALL, carIndex.get(car), floor, null));
+    }
+
+    public void carMoved(ElevatorCar car, int floor) {
+        enqueue(new ElevatorRequest(ElevatorRequestType.CAR_MOVED, carIndex.get(car), floor, null));
+    }
+
+    // sweep is the direction the car was travelling in, IDLE if it was already at the floor
+    public void carArrived(ElevatorCar car, int floor, Direction sweep) {
+        enqueue(new ElevatorRequest(ElevatorRequestType.CAR_ARRIVED, carIndex.get(car), floor, sweep));
+    }
+
+    // The floor the car should head for next as of the last request applied, -1 when it has none
+    public int getNextStop(ElevatorCar car) {
+        return nextStops.get(carIndex.get(car));
+    }
+
+    public long getAppliedReports(ElevatorCar car) {
+        return appliedReports.get(carIndex.get(car));
+    }
+
+    public long getReassignments() {
+        return reassignments.get();
+    }
+
+    public boolean isIdle() {
+        return requests.isEmpty();
+    }
+
+    // Snapshot for monitoring; only consistent once the dispatcher is stopped
+    Map<Integer, Integer> getAssignments() {
+        return new HashMap<>(assignedCar);
+    }
+
+    private void enqueue(ElevatorRequest request) {
+        requests.offer(request);
+        LockSupport.unpark(dispatcher);
+    }
+
+    private void dispatchLoop() {
+        long nextReevaluation = System.currentTimeMillis() + reevaluateMillis;
+        while (running || !requests.isEmpty()) {
+            ElevatorRequest request = requests.poll();
+            if (request != null) {
+                apply(request);
+            } else {
+                LockSupport.parkNanos(this, Math.max(1, nextReevaluation - System.currentTimeMillis()) * 1_000_000);
+            }
+            if (System.currentTimeMillis() >= nextReevaluation) {
+                reevaluate();
+                nextReevaluation = System.currentTimeMillis() + reevaluateMillis;
+            }
+        }
+    }
+
+    private void apply(ElevatorRequest request) {
+        switch (request.type) {
+            case HALL_CALL: {
+                ElevatorCar car = strategy.selectElevator(cars, request.floor, request.direction);
+                if (car == null) {
+                    // No zone serves the floor
+                    clearPending(hallCallKey(request.floor, request.direction));
+                    return;
+                }
+                int index = carIndex.get(car);
+                assignedCar.put(hallCallKey(request.floor, request.direction), index);
+                car.addFloorRequest(request.floor, request.direction);
+                publishNextStop(index);
+                break;
+            }
+            case CAR_CALL:
+                carCalls[request.car].set(request.floor);
+                cars.get(request.car).addFloorRequest(request.floor);
+                publishNextStop(request.car);
+                break;
+            case CAR_MOVED:
+                cars.get(request.car).moveTo(request.floor);
+                publishNextStop(request.car);
+                appliedReports.incrementAndGet(request.car);
+                break;
+            case CAR_ARRIVED: {
+                ElevatorCar car = cars.get(request.car);
+                car.arriveAt(request.floor, request.direction);
+                carCalls[request.car].clear(request.floor);
+                // A hall call is served once the car no longer has to stop here for its direction
+                for (Direction direction : new Direction[]{Direction.UP, Direction.DOWN}) {
+                    int key = hallCallKey(request.floor, direction);
+                    if (!car.hasFloorRequest(request.floor, direction) && assignedCar.remove(key, request.car)) {
+                        clearPending(key);
+                    }
+                }
+                publishNextStop(request.car);
+                appliedReports.incrementAndGet(request.car);
+                break;
+            }
+        }
+    }
+
+    private void reevaluate() {
+        for (Map.Entry<Integer, Integer> entry : assignedCar.entrySet()) {
+            int floor = entry.getKey() >>> 1;
+            Direction direction = (entry.getKey() & 1) == 0 ? Direction.UP : Direction.DOWN;
+            ElevatorCar current = cars.get(entry.getValue());
+            ElevatorCar best = strategy.selectElevator(cars, floor, direction);
+            if (best == null || best == current) continue;
+            if (strategy.estimateMillis(best, floor, direction) + reassignMarginMillis >= strategy.estimateMillis(current, floor, direction)) continue;
+            int previous = entry.getValue();
+            entry.setValue(carIndex.get(best));
+            best.addFloorRequest(floor, direction);
+            // The old car keeps the stop if one of its passengers still needs it
+            if (!carCalls[previous].get(floor)) {
+                current.removeFloorRequest(floor, direction);
+            }
+            publishNextStop(entry.getValue());
+            publishNextStop(previous);
+            reassignments.incrementAndGet();
+        }
+    }
+
+    private void publishNextStop(int car) {
+        Integer next = cars.get(car).getNextStop();
+        nextStops.set(car, next == null ? -1 : next);
+    }
+
+    private void clearPending(int key) {
+        long mask = ~(1L << key);
+        pendingHallCalls.getAndUpdate(key >>> 6, bits -> bits & mask);
+    }
+
+    private static int hallCallKey(int floor, Direction direction) {
+        return floor * 2 + (direction == Direction.DOWN ? 1 : 0);
+    }
+}
+
+// Many threads raise hall calls across a 3-zone bank while also acting as controllers for their
+// share of the cars, moving each towards the next stop the dispatcher published for it and
+// reporting the arrival; checks that every open call ends up with exactly one car that serves its floor
+class HallCallDispatcherBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int floors = args.length > 0 ? Integer.parseInt(args[0]) : 150;
+        int carsPerZone = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int callers = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int callsPerCaller = args.length > 3 ? Integer.parseInt(args[3]) : 100_000;
+
+        List<ElevatorCar> cars = new ArrayList<>();
+        List<ElevatorZone> zones = new ArrayList<>();
+        int zoneHeight = floors / 3;
+        for (int zone = 0; zone < 3; zone++) {
+            List<ElevatorCar> zoneCars = new ArrayList<>();
+            for (int car = 0; car < carsPerZone; car++) {
+                ElevatorCar elevator = new ElevatorCar(0);
+                zoneCars.add(elevator);
+                cars.add(elevator);
+            }
+            // Every zone also serves the lobby
+            int low = zone == 0 ? 0 : zone * zoneHeight;
+            int high = zone == 2 ? floors - 1 : (zone + 1) * zoneHeight - 1;
+            zones.add(new ElevatorZone(low, high, zoneCars));
+            if (zone > 0) zones.add(new ElevatorZone(0, 0, zoneCars));
+        }
+        EtaDispatchStrategy strategy = new EtaDispatchStrategy(500, 3_000, zones);
+        HallCallDispatcher dispatcher = new HallCallDispatcher(cars, floors, strategy, 5, 2_000);
+        dispatcher.start();
+
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong moves = new AtomicLong();
+        AtomicLong arrivals = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int caller = 0; caller < callers; caller++) {
+            int controller = caller;
+            Thread thread = new Thread(() -> {
+                // Cars controller, controller + callers, ... belong to this thread, which tracks where they are
+                List<ElevatorCar> ownCars = new ArrayList<>();
+                for (int car = controller; car < cars.size(); car += callers) {
+                    ownCars.add(cars.get(car));
+                }
+                int[] positions = new int[ownCars.size()];
+                long[] reports = new long[ownCars.size()];
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int call = 0; call < callsPerCaller; call++) {
+                    int floor = random.nextInt(floors);
+                    Direction direction = floor == 0 || (floor < floors - 1 && random.nextBoolean()) ? Direction.UP : Direction.DOWN;
+                    if (dispatcher.submitHallCall(floor, direction)) accepted.incrementAndGet();
+                    if (ownCars.isEmpty()) continue;
+                    // One of this thread's cars moves a floor towards its next stop, or arrives there
+                    int own = call % ownCars.size();
+                    ElevatorCar car = ownCars.get(own);
+                    // Wait until the dispatcher has applied this car's last report, or the stop is stale
+                    if (dispatcher.getAppliedReports(car) != reports[own]) {
+                        Thread.yield();
+                        continue;
+                    }
+                    int stop = dispatcher.getNextStop(car);
+                    if (stop < 0) continue;
+                    reports[own]++;
+                    int at = positions[own];
+                    if (Math.abs(stop - at) > 1) {
+                        positions[own] = at + Integer.signum(stop - at);
+                        dispatcher.carMoved(car, positions[own]);
+                        moves.incrementAndGet();
+                    } else {
+                        positions[own] = stop;
+                        dispatcher.carArrived(car, stop, stop > at ? Direction.UP : stop < at ? Direction.DOWN : Direction.IDLE);
+                        arrivals.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        dispatcher.stop();
+        long elapsedMs = (System.nanoTime() - begin) / 1_000_000;
+
+        int wrongZone = 0;
+        Map<Integer, Integer> assignments = dispatcher.getAssignments();
+        for (Map.Entry<Integer, Integer> entry : assignments.entrySet()) {
+            if (!strategy.canServe(cars.get(entry.getValue()), entry.getKey() >>> 1)) wrongZone++;
+        }
+        long requests = (long) callers * callsPerCaller + moves.get() + arrivals.get();
+        System.out.println(cars.size() + " cars in 3 zones, " + requests + " requests from " + callers + " threads in " + elapsedMs
+                + "ms (" + (requests * 1000 / Math.max(1, elapsedMs)) + "/s), " + accepted.get() + " hall calls accepted, " + arrivals.get() + " arrivals, "
+                + dispatcher.getReassignments() + " reassigned, " + assignments.size() + " still open, assigned outside zone: " + wrongZone);
+    }
+}
+
 
 public class ElevatorSystem {
     private final List<ElevatorCar> elevators;
     private final ElevatorDispatch elevatorDispatchController;
+    private final HallCallDispatcher hallCallDispatcher;
 
     public ElevatorSystem(List<ElevatorCar> elevators, DispatchStrategy strategy){
         this.elevators = elevators;
         this.elevatorDispatchController = new ElevatorDispatch(strategy);
+        this.hallCallDispatcher = null;
     }
 
+    // Requests from any thread go through the dispatcher, which then owns the cars
+    public ElevatorSystem(List<ElevatorCar> elevators, HallCallDispatcher hallCallDispatcher){
+        this.elevators = elevators;
+        this.elevatorDispatchController = null;
+        this.hallCallDispatcher = hallCallDispatcher;
+        hallCallDispatcher.start();
+    }
+
+    // Copies of each car's last published status, safe to read while the dispatcher moves the cars
     public List<ElevatorStatus> getAllElevatorStatus(){
         List<ElevatorStatus> elevatorStatuses = new ArrayList<>();
         for(ElevatorCar elevator : elevators){
-            elevatorStatuses.add(elevator.getStatus());
+            ElevatorStatus status = elevator.getStatus();
+            elevatorStatuses.add(new ElevatorStatus(status.getCurrentFloor(), status.getDirection()));
         }
         return elevatorStatuses;
     }
 
     public void requestElevator(int currentFloor, Direction direction){
+        if(hallCallDispatcher != null){
+            hallCallDispatcher.submitHallCall(currentFloor, direction);
+            return;
+        }
         elevatorDispatchController.dispatchElevator(currentFloor, direction, elevators);
     }
 
     public void selectFloor(ElevatorCar car, int floor){
         //This is where user selects the car
+        if(hallCallDispatcher != null){
+            hallCallDispatcher.submitCarCall(car, floor);
+            return;
+        }
         car.addFloorRequest(floor);
     }
 
 }
+
+
+enum ElevatorEventType {
+    CALL,
+    ARRIVE,
+    DOOR_OPEN,
+    DOOR_CLOSE
+}
+
+class ElevatorEvent {
+    final long time;
+    final long sequence;
+    final ElevatorEventType type;
+    final int car;
+    final int floor;
+    final long version;
+    final Passenger passenger;
+
+    ElevatorEvent(long time, long sequence, ElevatorEventType type, int car, int floor, long version, Passenger passenger) {
+        this.time = time;
+        this.sequence = sequence;
+        this.type = type;
+        this.car = car;
+        this.floor = floor;
+        this.version = version;
+        this.passenger = passenger;
+    }
+
+    // Same-time events run in the order they were scheduled, so runs are reproducible
+    static final Comparator<ElevatorEvent> ORDER = Comparator.<ElevatorEvent>comparingLong(e -> e.time).thenComparingLong(e -> e.sequence);
+}
+
+class Passenger {
+    final int origin;
+    final int destination;
+    final long callTime;
+    long boardTime = -1;
+
+    public Passenger(int origin, int destination, long callTime) {
+        this.origin = origin;
+        this.destination = destination;
+        this.callTime = callTime;
+    }
+
+    public Direction getDirection() {
+        return destination > origin ? Direction.UP : Direction.DOWN;
+    }
+}
+
+class ElevatorSimulationResult {
+    long delivered;
+    long totalWaitMillis;
+    long totalTravelMillis;
+    long maxWaitMillis;
+    long fallbackDispatches;
+    long events;
+    long simulatedMillis;
+    long wallMillis;
+
+    public double getAverageWaitSeconds() {
+        return delivered == 0 ? 0 : totalWaitMillis / 1000.0 / delivered;
+    }
+    public double getAverageTravelSeconds() {
+        return delivered == 0 ? 0 : totalTravelMillis / 1000.0 / delivered;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d delivered, avg wait %.1fs, avg travel %.1fs, max wait %.1fs, %d fallback dispatches, "
+                        + "%d events, %.1fh simulated in %dms (%.0fx real time)",
+                delivered, getAverageWaitSeconds(), getAverageTravelSeconds(), maxWaitMillis / 1000.0, fallbackDispatches,
+                events, simulatedMillis / 3_600_000.0, wallMillis, wallMillis == 0 ? 0 : (double) simulatedMillis / wallMillis);
+    }
+}
+
+// Discrete-event simulation of a bank of ElevatorCars driven by a DispatchStrategy. Time jumps from
+// event to event in a priority queue: a car travelling to its next stop is one ARRIVE event, and
+// when its stops change mid-trip the event is rescheduled and the old one dropped by version.
+// Hall calls a strategy can't place (it returns null) go to the nearest car and are counted.
+class ElevatorSimulation {
+    static final long FLOOR_MILLIS = 500;
+    static final long DOOR_MILLIS = 3_000;
+
+    private final int floors;
+    private final List<ElevatorCar> cars;
+    private final DispatchStrategy strategy;
+    private final int capacity;
+    private final CarState[] states;
+    private final List<ArrayDeque<Passenger>> waiting = new ArrayList<>();
+    private final PriorityQueue<ElevatorEvent> events = new PriorityQueue<>(ElevatorEvent.ORDER);
+    private long sequence;
+    private long now;
+    private ElevatorSimulationResult result;
+
+    private static class CarState {
+        boolean moving;
+        boolean doorsOpen;
+        Direction arrivalDirection = Direction.IDLE;
+        long departTime;
+        int departFloor;
+        int target;
+        long version;
+        final List<Passenger> riders = new ArrayList<>();
+    }
+
+    public ElevatorSimulation(int floors, List<ElevatorCar> cars, DispatchStrategy strategy, int capacity) {
+        this.floors = floors;
+        this.cars = cars;
+        this.strategy = strategy;
+        this.capacity = capacity;
+        this.states = new CarState[cars.size()];
+        for (int car = 0; car < states.length; car++) {
+            states[car] = new CarState();
+        }
+        for (int floor = 0; floor < floors; floor++) {
+            waiting.add(new ArrayDeque<>());
+        }
+    }
+
+    // calls must be ordered by callTime; they are fed into the event queue one at a time
+    public ElevatorSimulationResult run(List<Passenger> calls) {
+        result = new ElevatorSimulationResult();
+        long start = System.nanoTime();
+        int nextCall = 0;
+        if (!calls.isEmpty()) {
+            schedule(calls.get(0).callTime, ElevatorEventType.CALL, -1, calls.get(0).origin, 0, calls.get(nextCall++));
+        }
+        ElevatorEvent event;
+        while ((event = events.poll()) != null) {
+            now = event.time;
+            result.events++;
+            switch (event.type) {
+                case CALL:
+                    if (event.passenger != null && nextCall < calls.size()) {
+                        Passenger next = calls.get(nextCall++);
+                        schedule(next.callTime, ElevatorEventType.CALL, -1, next.origin, 0, next);
+                    }
+                    onCall(event);
+                    break;
+                case ARRIVE:
+                    onArrive(event);
+                    break;
+                case DOOR_OPEN:
+                    onDoorOpen(event);
+                    break;
+                case DOOR_CLOSE:
+                    onDoorClose(event);
+                    break;
+            }
+        }
+        result.simulatedMillis = now;
+        result.wallMillis = (System.nanoTime() - start) / 1_000_000;
+        return result;
+    }
+
+    // A CALL without a passenger re-raises the hall call for people left behind by a full car
+    private void onCall(ElevatorEvent event) {
+        ArrayDeque<Passenger> queue = waiting.get(event.floor);
+        if (event.passenger != null) {
+            queue.add(event.passenger);
+        } else if (queue.isEmpty()) {
+            return;
+        }
+        syncPositions();
+        if (event.passenger != null) {
+            dispatch(event.floor, event.passenger.getDirection());
+            return;
+        }
+        boolean up = false;
+        boolean down = false;
+        for (Passenger passenger : queue) {
+            up |= passenger.getDirection() == Direction.UP;
+            down |= passenger.getDirection() == Direction.DOWN;
+        }
+        if (up) dispatch(event.floor, Direction.UP);
+        if (down) dispatch(event.floor, Direction.DOWN);
+    }
+
+    private void dispatch(int floor, Direction direction) {
+        ElevatorCar selected = strategy.selectElevator(cars, floor, direction);
+        if (selected == null) {
+            selected = nearestCar(floor);
+            result.fallbackDispatches++;
+        }
+        selected.addFloorRequest(floor, direction);
+        stopsChanged(cars.indexOf(selected));
+    }
+
+    private void onArrive(ElevatorEvent event) {
+        CarState state = states[event.car];
+        if (event.version != state.version) return;
+        state.moving = false;
+        int travelled = event.floor - state.departFloor;
+        state.arrivalDirection = travelled > 0 ? Direction.UP : travelled < 0 ? Direction.DOWN : Direction.IDLE;
+        cars.get(event.car).arriveAt(event.floor, state.arrivalDirection);
+        schedule(now, ElevatorEventType.DOOR_OPEN, event.car, event.floor, state.version, null);
+    }
+
+    private void onDoorOpen(ElevatorEvent event) {
+        CarState state = states[event.car];
+        state.doorsOpen = true;
+        for (int i = state.riders.size() - 1; i >= 0; i--) {
+            Passenger rider = state.riders.get(i);
+            if (rider.destination == event.floor) {
+                state.riders.set(i, state.riders.get(state.riders.size() - 1));
+                state.riders.remove(state.riders.size() - 1);
+                long wait = rider.boardTime - rider.callTime;
+                result.delivered++;
+                result.totalWaitMillis += wait;
+                result.totalTravelMillis += now - rider.boardTime;
+                result.maxWaitMillis = Math.max(result.maxWaitMillis, wait);
+            }
+        }
+        // Passengers only board a car going their way; the rest keep waiting and call again
+        ElevatorCar car = cars.get(event.car);
+        Direction arrival = state.arrivalDirection;
+        Direction departure = car.isIdle() ? Direction.IDLE : car.getCurrentDirection();
+        ArrayDeque<Passenger> queue = waiting.get(event.floor);
+        for (int i = queue.size(); i > 0 && state.riders.size() < capacity; i--) {
+            Passenger passenger = queue.poll();
+            Direction wanted = passenger.getDirection();
+            if (arrival != Direction.IDLE && departure != Direction.IDLE && wanted != arrival && wanted != departure) {
+                queue.add(passenger);
+                continue;
+            }
+            passenger.boardTime = now;
+            state.riders.add(passenger);
+            car.addFloorRequest(passenger.destination);
+            departure = car.getCurrentDirection();
+        }
+        schedule(now + DOOR_MILLIS, ElevatorEventType.DOOR_CLOSE, event.car, event.floor, state.version, null);
+    }
+
+    private void onDoorClose(ElevatorEvent event) {
+        states[event.car].doorsOpen = false;
+        if (!waiting.get(event.floor).isEmpty()) {
+            // Left behind by a full car; call again once it has pulled away
+            schedule(now + DOOR_MILLIS, ElevatorEventType.CALL, -1, event.floor, 0, null);
+        }
+        stopsChanged(event.car);
+    }
+
+    private void stopsChanged(int carIndex) {
+        CarState state = states[carIndex];
+        if (state.doorsOpen) return;
+        ElevatorCar car = cars.get(carIndex);
+        Integer next = car.getNextStop();
+        if (next == null) return;
+        if (!state.moving) {
+            state.moving = true;
+            state.departTime = now;
+            state.departFloor = car.getCurrentFloor();
+            scheduleArrival(carIndex, next);
+            return;
+        }
+        if (next == state.target) return;
+        // Only a stop between the next floor the car can still stop at and its current target is
+        // taken mid-trip; anything else waits until the car reaches its target
+        int direction = Integer.signum(state.target - state.departFloor);
+        long elapsed = now - state.departTime;
+        int earliest = state.departFloor + direction * (int) ((elapsed + FLOOR_MILLIS - 1) / FLOOR_MILLIS);
+        if ((next - earliest) * direction >= 0 && (state.target - next) * direction > 0) {
+            scheduleArrival(carIndex, next);
+        }
+    }
+
+    private void scheduleArrival(int carIndex, int floor) {
+        CarState state = states[carIndex];
+        state.target = floor;
+        state.version++;
+        long arrival = state.departTime + Math.abs(floor - state.departFloor) * FLOOR_MILLIS;
+        schedule(Math.max(now, arrival), ElevatorEventType.ARRIVE, carIndex, floor, state.version, null);
+    }
+
+    // Strategies read getCurrentFloor(), so moving cars are brought up to date before a dispatch
+    private void syncPositions() {
+        for (int car = 0; car < states.length; car++) {
+            CarState state = states[car];
+            if (!state.moving) continue;
+            int distance = Math.abs(state.target - state.departFloor);
+            int travelled = (int) Math.min(distance, (now - state.departTime) / FLOOR_MILLIS);
+            cars.get(car).moveTo(state.departFloor + Integer.signum(state.target - state.departFloor) * travelled);
+        }
+    }
+
+    private ElevatorCar nearestCar(int floor) {
+        ElevatorCar nearest = cars.get(0);
+        for (ElevatorCar car : cars) {
+            if (Math.abs(car.getCurrentFloor() - floor) < Math.abs(nearest.getCurrentFloor() - floor)) {
+                nearest = car;
+            }
+        }
+        return nearest;
+    }
+
+    private void schedule(long time, ElevatorEventType type, int car, int floor, long version, Passenger passenger) {
+        events.add(new ElevatorEvent(time, sequence++, type, car, floor, version, passenger));
+    }
+
+    // Poisson arrivals; a share of trips start at the lobby (floor 0) like a morning rush
+    static List<Passenger> generateCalls(int count, int floors, long meanGapMillis, double lobbyShare, long seed) {
+        Random random = new Random(seed);
+        List<Passenger> calls = new ArrayList<>(count);
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            time += (long) (-Math.log(1 - random.nextDouble()) * meanGapMillis);
+            int origin = random.nextDouble() < lobbyShare ? 0 : random.nextInt(floors);
+            int destination = random.nextInt(floors - 1);
+            if (destination >= origin) destination++;
+            calls.add(new Passenger(origin, destination, time));
+        }
+        return calls;
+    }
+}
+
+// Replays the same calls against each DispatchStrategy and stop order (FIFO, LOOK) on a fresh bank of cars
+class ElevatorSimulationBenchmark {
+    public static void main(String[] args) {
+        int carCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int floors = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int callCount = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+        long meanGapMillis = args.length > 3 ? Long.parseLong(args[3]) : 1_000;
+
+        List<Passenger> calls = ElevatorSimulation.generateCalls(callCount, floors, meanGapMillis, 0.3, 42);
+        DispatchStrategy[] strategies = {new FirstComeFirstServeStrategy(), new ShortestSeekTimeFirstStrategy(), new EtaDispatchStrategy()};
+        for (DispatchStrategy strategy : strategies) {
+            for (boolean look : new boolean[]{false, true}) {
+                List<ElevatorCar> cars = new ArrayList<>();
+                for (int car = 0; car < carCount; car++) {
+                    cars.add(new ElevatorCar(0, look ? new LookStopScheduler() : new FifoStopScheduler()));
+                }
+                List<Passenger> fresh = new ArrayList<>(calls.size());
+                for (Passenger call : calls) {
+                    fresh.add(new Passenger(call.origin, call.destination, call.callTime));
+                }
+                ElevatorSimulationResult result = new ElevatorSimulation(floors, cars, strategy, 16).run(fresh);
+                System.out.println(strategy.getClass().getSimpleName() + (look ? " + LOOK: " : " + FIFO: ") + result);
+            }
+        }
+    }
+}
@@ -1,7 +1,42 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 class Movie {
     private String title;
@@ -54,23 +89,36 @@ class Seat {
 
 interface PricingStrategy {
     BigDecimal getRate();
+    long getBaseCents();
 }
 
 class NormalRate implements PricingStrategy {
+    private static final BigDecimal RATE = new BigDecimal("100.0");
     public BigDecimal getRate() {
-        return new BigDecimal("100.0");
+        return RATE;
+    }
+    public long getBaseCents() {
+        return 10_000;
     }
 }
 
 class PremiumRate implements PricingStrategy {
+    private static final BigDecimal RATE = new BigDecimal("500.0");
     public BigDecimal getRate() {
-        return new BigDecimal("500.0");
+        return RATE;
+    }
+    public long getBaseCents() {
+        return 50_000;
     }
 }
 
 class VIPRate implements PricingStrategy {
+    private static final BigDecimal RATE = new BigDecimal("1000.0");
     public BigDecimal getRate() {
-        return new BigDecimal("1000.0");
+        return RATE;
+    }
+    public long getBaseCents() {
+        return 100_000;
     }
 }
 
@@ -85,6 +133,8 @@ interface Layout {
     Seat getSeatByNumber(int seatNumber);
     Seat getSeatByPosition(int row, int col);
     List<Seat> getAllSeats();
+    int getRows();
+    int getCols();
 }
 
 class ClassicLayout implements Layout {
@@ -96,6 +146,8 @@ class ClassicLayout implements Layout {
     public ClassicLayout(int rows, int cols) {
         this.rows = rows;
         this.cols = cols;
+        this.seats = new HashMap<>();
+        this.seatByNumber = new HashMap<>();
     }
 
     public void addSeat(Seat seat, int row, int col) {
@@ -118,6 +170,12 @@ class ClassicLayout implements Layout {
     public List<Seat> getAllSeats() {
         return List.copyOf(seatByNumber.values());
     }
+    public int getRows() {
+        return rows;
+    }
+    public int getCols() {
+        return cols;
+    }
 }
 
 
@@ -140,10 +198,18 @@ class Cinema {
     String name;
     String location;
     List<Room> rooms;
+    double latitude;
+    double longitude;
     public Cinema(String name, List<Room> rooms, String location) {
+        this(name, rooms, location, Double.NaN, Double.NaN);
+    }
+
+    public Cinema(String name, List<Room> rooms, String location, double latitude, double longitude) {
         this.name = name;
         this.rooms = rooms;
         this.location = location;
+        this.latitude = latitude;
+        this.longitude = longitude;
     }
 
     public void addRoom(Room room) {
@@ -157,12 +223,19 @@ class Cinema {
 
 
 class Screening {
+    String id;
     Movie movie;
     Room room;
     LocalDateTime startTime;
     LocalDateTime endTime;
 
     public Screening(Movie movie, Room room, LocalDateTime startTime, LocalDateTime endTime) {
+        this(movie.getTitle() + "/" + room.roomNumber + "/" + startTime, movie, room, startTime, endTime);
+    }
+
+    // The id has to stay the same across restarts, the booking ledger refers to screenings by it
+    public Screening(String id, Movie movie, Room room, LocalDateTime startTime, LocalDateTime endTime) {
+        this.id = id;
         this.movie = movie;
         this.room = room;
         this.startTime = startTime;
@@ -175,6 +248,10 @@ class Screening {
         );
     }
 
+    public String getId() {
+        return id;
+    }
+
     public Movie getMovie() {
         return movie;
     }
@@ -182,6 +259,14 @@ class Screening {
     public Room getRoom() {
         return room;
     }
+
+    public LocalDateTime getStartTime() {
+        return startTime;
+    }
+
+    public LocalDateTime getEndTime() {
+        return endTime;
+    }
 }
 
 
@@ -192,20 +277,44 @@ class MovieTicket {
     Screening screening;
     Seat seat;
     BigDecimal price;
+    long priceCents;
+    long holdId;
 
     public MovieTicket(Screening screening, Seat seat) {
         this.screening = screening;
         this.seat = seat;
         this.price = seat.getRate();
+        this.priceCents = seat.getPricingStrategy().getBaseCents();
+    }
+
+    // holdId is the booking that owns the seat; cancelling only succeeds while it still does
+    public MovieTicket(Screening screening, Seat seat, long holdId, long priceCents) {
+        this.screening = screening;
+        this.seat = seat;
+        this.price = BigDecimal.valueOf(priceCents, 2);
+        this.priceCents = priceCents;
+        this.holdId = holdId;
     }
 
     public BigDecimal getPrice() {
         return price;
     }
 
+    public long getPriceCents() {
+        return priceCents;
+    }
+
+    public long getHoldId() {
+        return holdId;
+    }
+
     public Screening getScreening() {
         return screening;
     }
+
+    public Seat getSeat() {
+        return seat;
+    }
 }
 
 
@@ -217,6 +326,7 @@ class Order {
     LocalDateTime orderDate;
     public Order(LocalDateTime orderDate) {
         this.orderDate = orderDate;
+        this.movieTickets = new ArrayList<>();
     }
 
     public void addMovieTicket(MovieTicket movieTicket) {
@@ -224,11 +334,11 @@ class Order {
     }
 
     public BigDecimal getPrice() {
-        BigDecimal price = new BigDecimal("0");
+        long cents = 0;
         for(MovieTicket movieTicket : movieTickets) {
-            price.add(movieTicket.getPrice());
+            cents += movieTicket.getPriceCents();
         }
-        return price;
+        return BigDecimal.valueOf(cents, 2);
     }
 }
 
@@ -237,21 +347,51 @@ class Order {
 
 
 class ScreeningManager {
-    Map<Movie, List<Screening>> moviesByScreenings;
-    Map<Screening, List<MovieTicket>> ticketsByScreenings;
+    Map<Movie, List<Screening>> moviesByScreenings = new ConcurrentHashMap<>();
+    Map<Screening, List<MovieTicket>> ticketsByScreenings = new ConcurrentHashMap<>();
+    Map<String, Screening> screeningsById = new ConcurrentHashMap<>();
+    private final SeatReservationEngine reservationEngine;
+    private final ScreeningSearchIndex searchIndex = new ScreeningSearchIndex();
+
+    public ScreeningManager(SeatReservationEngine reservationEngine) {
+        this.reservationEngine = reservationEngine;
+    }
+
+    public void addCinema(Cinema cinema) {
+        searchIndex.addCinema(cinema);
+    }
+
+    public List<Screening> searchScreenings(ScreeningQuery query) {
+        return searchIndex.search(query);
+    }
+
+    public Cinema getCinema(Screening screening) {
+        return searchIndex.getCinema(screening);
+    }
 
     public void addScreening(Screening screening) {
+        screeningsById.put(screening.getId(), screening);
+        searchIndex.addScreening(screening);
         Movie movie = screening.getMovie();
-        moviesByScreenings.putIfAbsent(movie, new ArrayList<>());
-        moviesByScreenings.get(movie).add(screening);
+        moviesByScreenings.computeIfAbsent(movie, k -> Collections.synchronizedList(new ArrayList<>())).add(screening);
 
-        ticketsByScreenings.putIfAbsent(screening, new ArrayList<>());
+        ticketsByScreenings.putIfAbsent(screening, Collections.synchronizedList(new ArrayList<>()));
     }
 
     public void addTicket(MovieTicket movieTicket) {
         Screening screening = movieTicket.getScreening();
-        ticketsByScreenings.putIfAbsent(screening, new ArrayList<>());
-        ticketsByScreenings.get(screening).add(movieTicket);
+        ticketsByScreenings.computeIfAbsent(screening, k -> Collections.synchronizedList(new ArrayList<>())).add(movieTicket);
+    }
+
+    public void removeTicket(MovieTicket movieTicket) {
+        List<MovieTicket> tickets = ticketsByScreenings.get(movieTicket.getScreening());
+        if (tickets != null) {
+            tickets.remove(movieTicket);
+        }
+    }
+
+    public Screening getScreening(String id) {
+        return screeningsById.get(id);
     }
 
     public List<Screening> getScreenings(Movie movie) {
@@ -262,35 +402,1725 @@ class ScreeningManager {
         return ticketsByScreenings.get(screening);
     }
 
+    // Availability is per screening; the Seat objects are shared by every screening in the room
     public List<Seat> getAvailableSeats(Screening screening) {
-        Room room = screening.getRoom();
-        Layout layout = room.layout;
+        return getAvailability(screening).getAvailableSeats();
+    }
+
+    public SeatAvailabilitySnapshot getAvailability(Screening screening) {
+        return reservationEngine.getSeats(screening).getSnapshot();
+    }
+}
+
+
+
+
+
+// Lock-free bit set, bits are claimed and released with CAS on the containing word
+class AtomicSeatBitmap {
+    private final AtomicLongArray words;
+    private final int size;
+
+    public AtomicSeatBitmap(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Sets the bit only if it was clear, returns false when someone else holds it
+    public boolean trySet(int index) {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long current = words.get(word);
+            if ((current & mask) != 0) return false;
+            if (words.compareAndSet(word, current, current | mask)) return true;
+        }
+    }
+
+    // Clears the bit, returns false if it was already clear
+    public boolean clear(int index) {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long current = words.get(word);
+            if ((current & mask) == 0) return false;
+            if (words.compareAndSet(word, current, current & ~mask)) return true;
+        }
+    }
+
+    public boolean get(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    public long getWord(int word) {
+        return words.get(word);
+    }
+
+    public int wordCount() {
+        return words.length();
+    }
+}
+
+enum HoldStatus {
+    HELD,
+    CONFIRMED,
+    RELEASED,
+    EXPIRED
+}
+
+class SeatHold {
+    private final long id;
+    private final Screening screening;
+    private final int[] seatIndexes;
+    private final long expiresAt;
+    private final AtomicReference<HoldStatus> status = new AtomicReference<>(HoldStatus.HELD);
+    private long[] priceCents;
+
+    public SeatHold(long id, Screening screening, int[] seatIndexes, long expiresAt) {
+        this.id = id;
+        this.screening = screening;
+        this.seatIndexes = seatIndexes;
+        this.expiresAt = expiresAt;
+    }
+
+    public long getId() {
+        return id;
+    }
+    public Screening getScreening() {
+        return screening;
+    }
+    public int[] getSeatIndexes() {
+        return seatIndexes;
+    }
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+    // Parallel to getSeatIndexes(); null when no pricing engine quoted the hold
+    public long[] getPriceCents() {
+        return priceCents;
+    }
+    void lockPrices(long[] priceCents) {
+        this.priceCents = priceCents;
+    }
+    public HoldStatus getStatus() {
+        return status.get();
+    }
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+    // Exactly one of confirm/release/expire wins for a hold
+    public boolean transition(HoldStatus to) {
+        return status.compareAndSet(HoldStatus.HELD, to);
+    }
+}
+
+// Seat state of one screening. Seats are indexed row-major (row * cols + col) over the room layout;
+// positions without a seat are permanently taken.
+class ScreeningSeats {
+    private final Screening screening;
+    private final int rows;
+    private final int cols;
+    private final Seat[] seats;
+    private final Map<Seat, Integer> indexBySeat = new IdentityHashMap<>();
+    final AtomicSeatBitmap taken;
+    final AtomicSeatBitmap booked;
+    final AtomicLongArray holders;
+    private final AtomicLong version = new AtomicLong();
+    private volatile SeatAvailabilitySnapshot snapshot;
+
+    public ScreeningSeats(Screening screening) {
+        this.screening = screening;
+        Layout layout = screening.getRoom().layout;
+        this.rows = layout.getRows();
+        this.cols = layout.getCols();
+        this.seats = new Seat[rows * cols];
+        this.taken = new AtomicSeatBitmap(seats.length);
+        this.booked = new AtomicSeatBitmap(seats.length);
+        this.holders = new AtomicLongArray(seats.length);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int index = row * cols + col;
+                Seat seat = layout.getSeatByPosition(row, col);
+                if (seat == null) {
+                    taken.trySet(index);
+                    booked.trySet(index);
+                } else {
+                    seats[index] = seat;
+                    indexBySeat.put(seat, index);
+                }
+            }
+        }
+    }
+
+    public Screening getScreening() {
+        return screening;
+    }
+    public int getRows() {
+        return rows;
+    }
+    public int getCols() {
+        return cols;
+    }
+    public Seat getSeat(int index) {
+        return seats[index];
+    }
+    public int size() {
+        return seats.length;
+    }
+    public int indexOf(Seat seat) {
+        Integer index = indexBySeat.get(seat);
+        return index == null ? -1 : index;
+    }
+    public boolean isAvailable(int index) {
+        return !taken.get(index);
+    }
+
+    public boolean claim(int index) {
+        if (!taken.trySet(index)) return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    public void unclaim(int index) {
+        if (taken.clear(index)) {
+            version.incrementAndGet();
+        }
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    // Rebuilt at most once per version; readers share the same immutable copy
+    public SeatAvailabilitySnapshot getSnapshot() {
+        long currentVersion = version.get();
+        SeatAvailabilitySnapshot current = snapshot;
+        if (current != null && current.getVersion() == currentVersion) {
+            return current;
+        }
+        long[] available = new long[taken.wordCount()];
+        for (int word = 0; word < available.length; word++) {
+            available[word] = ~taken.getWord(word);
+        }
+        int tail = seats.length & 63;
+        if (tail != 0) {
+            available[available.length - 1] &= (1L << tail) - 1;
+        }
+        current = new SeatAvailabilitySnapshot(this, currentVersion, available);
+        snapshot = current;
+        return current;
+    }
+}
+
+class SeatAvailabilitySnapshot {
+    private final ScreeningSeats seats;
+    private final long version;
+    private final long[] available;
+
+    public SeatAvailabilitySnapshot(ScreeningSeats seats, long version, long[] available) {
+        this.seats = seats;
+        this.version = version;
+        this.available = available;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+    public int getRows() {
+        return seats.getRows();
+    }
+    public int getCols() {
+        return seats.getCols();
+    }
+    public boolean isAvailable(int row, int col) {
+        int index = row * seats.getCols() + col;
+        return (available[index >>> 6] & (1L << index)) != 0;
+    }
+    public Seat getSeat(int row, int col) {
+        return seats.getSeat(row * seats.getCols() + col);
+    }
+
+    // The availability bits of one row, re-aligned so that bit i is column i
+    public long[] rowBits(int row) {
+        int cols = seats.getCols();
+        long[] bits = new long[(cols + 63) >>> 6];
+        int start = row * cols;
+        for (int word = 0; word < bits.length; word++) {
+            int position = start + (word << 6);
+            int offset = position & 63;
+            int source = position >>> 6;
+            long value = available[source] >>> offset;
+            if (offset != 0 && source + 1 < available.length) {
+                value |= available[source + 1] << (64 - offset);
+            }
+            bits[word] = value;
+        }
+        int tail = cols & 63;
+        if (tail != 0) {
+            bits[bits.length - 1] &= (1L << tail) - 1;
+        }
+        return bits;
+    }
+    public int getAvailableCount() {
+        int count = 0;
+        for (long word : available) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+    public List<Seat> getAvailableSeats() {
+        List<Seat> result = new ArrayList<>();
+        for (int word = 0; word < available.length; word++) {
+            long bits = available[word];
+            while (bits != 0) {
+                result.add(seats.getSeat((word << 6) + Long.numberOfTrailingZeros(bits)));
+                bits &= bits - 1;
+            }
+        }
+        return result;
+    }
+}
 
-        List<Seat> availableSeats = new ArrayList<>();
+// Finds the best block of adjacent free seats in one row. Rows come from the availability bitmap as
+// words, runs of n free seats are found with O(log n) shift-and steps per word, and blocks are
+// scored by squared distance from the sweet spot (row distance weighted by rowWeight).
+class SeatBlockFinder {
+    private final double sweetSpotRow;
+    private final double sweetSpotCol;
+    private final double rowWeight;
+
+    // Sweet spot is given as fractions of the room, e.g. (0.6, 0.5) is a bit behind the middle
+    public SeatBlockFinder(double sweetSpotRow, double sweetSpotCol, double rowWeight) {
+        this.sweetSpotRow = sweetSpotRow;
+        this.sweetSpotCol = sweetSpotCol;
+        this.rowWeight = rowWeight;
+    }
 
-        for(Seat seat : layout.getAllSeats()) {
-            if(seat.isAvailable()) {
-                availableSeats.add(seat);
+    public List<Seat> findBestBlock(SeatAvailabilitySnapshot snapshot, int count) {
+        int rows = snapshot.getRows();
+        int cols = snapshot.getCols();
+        if (count <= 0 || count > cols) return null;
+        double targetRow = sweetSpotRow * (rows - 1);
+        // Start column that centres the block on the sweet spot
+        double targetStart = sweetSpotCol * (cols - 1) - (count - 1) / 2.0;
+
+        int bestRow = -1;
+        int bestStart = -1;
+        double bestScore = Double.MAX_VALUE;
+        // Walk rows outward from the sweet spot, so nothing further away can beat the current best
+        int below = (int) Math.floor(targetRow);
+        int above = below + 1;
+        while (below >= 0 || above < rows) {
+            int row = above >= rows || (below >= 0 && targetRow - below <= above - targetRow) ? below-- : above++;
+            double rowDistance = row - targetRow;
+            double rowScore = rowWeight * rowDistance * rowDistance;
+            if (rowScore >= bestScore) break;
+            long[] starts = runStarts(snapshot.rowBits(row), count);
+            int target = (int) Math.max(0, Math.min(cols - count, Math.round(targetStart)));
+            int after = nextSetBit(starts, target);
+            int before = previousSetBit(starts, target);
+            for (int start : new int[]{after, before}) {
+                if (start < 0) continue;
+                double colDistance = start - targetStart;
+                double score = rowScore + colDistance * colDistance;
+                if (score < bestScore) {
+                    bestScore = score;
+                    bestRow = row;
+                    bestStart = start;
+                }
             }
         }
+        if (bestRow < 0) return null;
+        List<Seat> seats = new ArrayList<>();
+        for (int col = bestStart; col < bestStart + count; col++) {
+            seats.add(snapshot.getSeat(bestRow, col));
+        }
+        return seats;
+    }
+
+    // Bit i is set when seats i .. i+count-1 are all free
+    static long[] runStarts(long[] free, int count) {
+        long[] runs = free.clone();
+        int length = 1;
+        while (length * 2 <= count) {
+            andShifted(runs, runs, length);
+            length *= 2;
+        }
+        if (length < count) {
+            andShifted(runs, runs.clone(), count - length);
+        }
+        return runs;
+    }
+
+    // target &= source >>> shift, treating the arrays as one little-endian bit string
+    private static void andShifted(long[] target, long[] source, int shift) {
+        int wordShift = shift >>> 6;
+        int bitShift = shift & 63;
+        for (int word = 0; word < target.length; word++) {
+            int from = word + wordShift;
+            long low = from < source.length ? source[from] : 0;
+            long high = from + 1 < source.length ? source[from + 1] : 0;
+            long shifted = bitShift == 0 ? low : (low >>> bitShift) | (high << (64 - bitShift));
+            target[word] &= shifted;
+        }
+    }
+
+    private static int nextSetBit(long[] bits, int from) {
+        int word = from >>> 6;
+        if (word >= bits.length) return -1;
+        long current = bits[word] & (-1L << from);
+        while (true) {
+            if (current != 0) return (word << 6) + Long.numberOfTrailingZeros(current);
+            if (++word == bits.length) return -1;
+            current = bits[word];
+        }
+    }
+
+    private static int previousSetBit(long[] bits, int from) {
+        int word = from >>> 6;
+        if (word >= bits.length) return -1;
+        long current = bits[word] & (-1L >>> (63 - (from & 63)));
+        while (true) {
+            if (current != 0) return (word << 6) + 63 - Long.numberOfLeadingZeros(current);
+            if (word-- == 0) return -1;
+            current = bits[word];
+        }
+    }
+}
+
+class ScreeningQuery {
+    Movie movie;
+    Cinema cinema;
+    LocalDateTime from;
+    LocalDateTime to;
+    double latitude = Double.NaN;
+    double longitude = Double.NaN;
+    double radiusKm;
+    int offset;
+    int limit = 50;
+
+    public ScreeningQuery movie(Movie movie) {
+        this.movie = movie;
+        return this;
+    }
+    public ScreeningQuery cinema(Cinema cinema) {
+        this.cinema = cinema;
+        return this;
+    }
+    // Screenings starting in [from, to)
+    public ScreeningQuery between(LocalDateTime from, LocalDateTime to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+    public ScreeningQuery near(double latitude, double longitude, double radiusKm) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radiusKm = radiusKm;
+        return this;
+    }
+    public ScreeningQuery page(int offset, int limit) {
+        this.offset = offset;
+        this.limit = limit;
+        return this;
+    }
+}
+
+// Time-ordered entry; the sequence number keeps screenings with the same start time distinct
+class IndexedScreening {
+    final long start;
+    final long sequence;
+    final Screening screening;
 
-        return availableSeats;
+    IndexedScreening(long start, long sequence, Screening screening) {
+        this.start = start;
+        this.sequence = sequence;
+        this.screening = screening;
     }
+
+    static final Comparator<IndexedScreening> ORDER = Comparator.<IndexedScreening>comparingLong(s -> s.start).thenComparingLong(s -> s.sequence);
 }
 
+// Sorted start-time indexes (global, per movie, per cinema, per cinema and movie) plus a lat/lon
+// grid over cinemas.
+// A query narrows the candidate cinemas first, then k-way merges their time ranges so paging only
+// touches offset + limit entries. Screenings in a room no registered cinema owns yet wait in
+// pendingByRoom and are indexed by cinema once the room is registered.
+class ScreeningSearchIndex {
+    private static final double CELL_DEGREES = 0.1;
+    private static final double KM_PER_DEGREE = 111.32;
+
+    private final Map<Room, Cinema> cinemaByRoom = new ConcurrentHashMap<>();
+    private final Map<Screening, Cinema> cinemaByScreening = new ConcurrentHashMap<>();
+    private final Map<Room, List<IndexedScreening>> pendingByRoom = new HashMap<>();
+    private final Map<Long, Set<Cinema>> cinemasByCell = new ConcurrentHashMap<>();
+    private final Map<Movie, NavigableSet<IndexedScreening>> byMovie = new ConcurrentHashMap<>();
+    private final Map<Cinema, NavigableSet<IndexedScreening>> byCinema = new ConcurrentHashMap<>();
+    private final Map<Cinema, Map<Movie, NavigableSet<IndexedScreening>>> byCinemaAndMovie = new ConcurrentHashMap<>();
+    private final NavigableSet<IndexedScreening> all = new ConcurrentSkipListSet<>(IndexedScreening.ORDER);
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Registering the same cinema again picks up rooms added to it since
+    public void addCinema(Cinema cinema) {
+        if (!Double.isNaN(cinema.latitude)) {
+            cinemasByCell.computeIfAbsent(cellKey(cell(cinema.latitude), cell(cinema.longitude)), k -> ConcurrentHashMap.newKeySet()).add(cinema);
+        }
+        List<IndexedScreening> waiting = new ArrayList<>();
+        synchronized (pendingByRoom) {
+            for (Room room : cinema.rooms) {
+                cinemaByRoom.put(room, cinema);
+                List<IndexedScreening> pending = pendingByRoom.remove(room);
+                if (pending != null) waiting.addAll(pending);
+            }
+        }
+        for (IndexedScreening entry : waiting) {
+            indexByCinema(entry, cinema);
+        }
+    }
+
+    public void addScreening(Screening screening) {
+        IndexedScreening entry = new IndexedScreening(epochSecond(screening.getStartTime()), sequence.incrementAndGet(), screening);
+        all.add(entry);
+        byMovie.computeIfAbsent(screening.getMovie(), k -> new ConcurrentSkipListSet<>(IndexedScreening.ORDER)).add(entry);
+        Cinema cinema = cinemaByRoom.get(screening.getRoom());
+        if (cinema == null) {
+            // Checked again under the lock so a cinema registered meanwhile can't miss the entry
+            synchronized (pendingByRoom) {
+                cinema = cinemaByRoom.get(screening.getRoom());
+                if (cinema == null) {
+                    pendingByRoom.computeIfAbsent(screening.getRoom(), k -> new ArrayList<>()).add(entry);
+                    return;
+                }
+            }
+        }
+        indexByCinema(entry, cinema);
+    }
+
+    public Cinema getCinema(Screening screening) {
+        return cinemaByScreening.get(screening);
+    }
+
+    private void indexByCinema(IndexedScreening entry, Cinema cinema) {
+        Screening screening = entry.screening;
+        cinemaByScreening.put(screening, cinema);
+        byCinema.computeIfAbsent(cinema, k -> new ConcurrentSkipListSet<>(IndexedScreening.ORDER)).add(entry);
+        byCinemaAndMovie.computeIfAbsent(cinema, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(screening.getMovie(), k -> new ConcurrentSkipListSet<>(IndexedScreening.ORDER)).add(entry);
+    }
+
+    public List<Screening> search(ScreeningQuery query) {
+        List<NavigableSet<IndexedScreening>> sources = new ArrayList<>();
+        boolean byLocation = !Double.isNaN(query.latitude);
+        if (query.cinema == null && !byLocation) {
+            sources.add(query.movie == null ? all : byMovie.getOrDefault(query.movie, Collections.emptyNavigableSet()));
+        } else {
+            Collection<Cinema> candidates = query.cinema != null ? List.of(query.cinema) : cinemasNear(query.latitude, query.longitude, query.radiusKm);
+            for (Cinema cinema : candidates) {
+                if (byLocation && !within(cinema, query.latitude, query.longitude, query.radiusKm)) continue;
+                addSource(sources, cinema, query.movie);
+            }
+        }
+
+        IndexedScreening from = new IndexedScreening(query.from == null ? Long.MIN_VALUE : epochSecond(query.from), Long.MIN_VALUE, null);
+        IndexedScreening to = new IndexedScreening(query.to == null ? Long.MAX_VALUE : epochSecond(query.to), Long.MIN_VALUE, null);
+        PriorityQueue<PeekingCursor> heads = new PriorityQueue<>(Comparator.comparing(c -> c.head, IndexedScreening.ORDER));
+        for (NavigableSet<IndexedScreening> source : sources) {
+            PeekingCursor cursor = new PeekingCursor(source.subSet(from, true, to, false).iterator());
+            if (cursor.head != null) heads.add(cursor);
+        }
+
+        List<Screening> page = new ArrayList<>();
+        int skipped = 0;
+        while (!heads.isEmpty() && page.size() < query.limit) {
+            PeekingCursor cursor = heads.poll();
+            if (skipped < query.offset) {
+                skipped++;
+            } else {
+                page.add(cursor.head.screening);
+            }
+            if (cursor.advance()) heads.add(cursor);
+        }
+        return page;
+    }
+
+    private void addSource(List<NavigableSet<IndexedScreening>> sources, Cinema cinema, Movie movie) {
+        NavigableSet<IndexedScreening> source = movie == null
+                ? byCinema.get(cinema)
+                : byCinemaAndMovie.getOrDefault(cinema, Map.of()).get(movie);
+        if (source != null) sources.add(source);
+    }
 
+    private List<Cinema> cinemasNear(double latitude, double longitude, double radiusKm) {
+        double latitudeSpan = radiusKm / KM_PER_DEGREE;
+        double longitudeSpan = radiusKm / (KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(latitude))));
+        List<Cinema> result = new ArrayList<>();
+        for (long row = cell(latitude - latitudeSpan); row <= cell(latitude + latitudeSpan); row++) {
+            for (long col = cell(longitude - longitudeSpan); col <= cell(longitude + longitudeSpan); col++) {
+                result.addAll(cinemasByCell.getOrDefault(cellKey(row, col), Set.of()));
+            }
+        }
+        return result;
+    }
 
+    private static boolean within(Cinema cinema, double latitude, double longitude, double radiusKm) {
+        if (Double.isNaN(cinema.latitude)) return false;
+        double dLat = Math.toRadians(cinema.latitude - latitude);
+        double dLon = Math.toRadians(cinema.longitude - longitude);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(latitude)) * Math.cos(Math.toRadians(cinema.latitude)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * 6371.0 * Math.asin(Math.sqrt(a)) <= radiusKm;
+    }
 
+    private static long cell(double degrees) {
+        return (long) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(long row, long col) {
+        return (row << 32) ^ (col & 0xFFFFFFFFL);
+    }
+
+    private static long epochSecond(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static class PeekingCursor {
+        private final Iterator<IndexedScreening> iterator;
+        private IndexedScreening head;
+
+        PeekingCursor(Iterator<IndexedScreening> iterator) {
+            this.iterator = iterator;
+            advance();
+        }
+
+        boolean advance() {
+            head = iterator.hasNext() ? iterator.next() : null;
+            return head != null;
+        }
+    }
+}
+
+interface ReservationListener {
+    void onHold(SeatHold hold);
+    void onConfirm(SeatHold hold);
+    void onRelease(SeatHold hold);
+    void onCancel(Screening screening, long holdId, int seatIndex);
+    void onExpire(SeatHold hold);
+}
+
+enum LedgerEventType {
+    HOLD,
+    CONFIRM,
+    RELEASE,
+    CANCEL
+}
+
+class LedgerEvent {
+    final LedgerEventType type;
+    final String screeningId;
+    final long holdId;
+    final long expiresAt;
+    final int[] seatIndexes;
+    // Locked prices parallel to seatIndexes, empty when the hold was not priced
+    final long[] priceCents;
+
+    public LedgerEvent(LedgerEventType type, String screeningId, long holdId, long expiresAt, int[] seatIndexes, long[] priceCents) {
+        this.type = type;
+        this.screeningId = screeningId;
+        this.holdId = holdId;
+        this.expiresAt = expiresAt;
+        this.seatIndexes = seatIndexes;
+        this.priceCents = priceCents;
+    }
+
+    static long[] pricesOf(SeatHold hold) {
+        long[] priceCents = hold.getPriceCents();
+        return priceCents == null ? new long[0] : priceCents;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeUTF(screeningId);
+        out.writeLong(holdId);
+        out.writeLong(expiresAt);
+        out.writeInt(seatIndexes.length);
+        for (int index : seatIndexes) {
+            out.writeInt(index);
+        }
+        out.writeInt(priceCents.length);
+        for (long cents : priceCents) {
+            out.writeLong(cents);
+        }
+    }
+
+    static LedgerEvent readFrom(DataInputStream in) throws IOException {
+        LedgerEventType type = LedgerEventType.values()[in.readByte()];
+        String screeningId = in.readUTF();
+        long holdId = in.readLong();
+        long expiresAt = in.readLong();
+        int[] seatIndexes = new int[in.readInt()];
+        for (int i = 0; i < seatIndexes.length; i++) {
+            seatIndexes[i] = in.readInt();
+        }
+        long[] priceCents = new long[in.readInt()];
+        for (int i = 0; i < priceCents.length; i++) {
+            priceCents[i] = in.readLong();
+        }
+        return new LedgerEvent(type, screeningId, holdId, expiresAt, seatIndexes, priceCents);
+    }
+}
+
+// Replayed seat state of one screening: the owning hold of every seat and whether it is booked.
+// Events are applied only when the seat is still owned by the event's hold, so two holds racing
+// for the same seat reach the same state whichever of their events was logged first. A confirm
+// is the exception: it was acknowledged, so it books the seat even if its unacknowledged hold
+// event never made it to disk.
+class ScreeningLedgerState {
+    static final byte FREE = 0;
+    static final byte HELD = 1;
+    static final byte BOOKED = 2;
+
+    long[] owners = new long[64];
+    byte[] statuses = new byte[64];
+    // Locked price of a held or booked seat, 0 when it was not priced
+    long[] prices = new long[64];
+    final Map<Long, long[]> holdExpiry = new HashMap<>();
+
+    void apply(LedgerEvent event) {
+        for (int i = 0; i < event.seatIndexes.length; i++) {
+            int index = event.seatIndexes[i];
+            long price = i < event.priceCents.length ? event.priceCents[i] : 0;
+            ensureCapacity(index);
+            switch (event.type) {
+                case HOLD -> {
+                    owners[index] = event.holdId;
+                    statuses[index] = HELD;
+                    prices[index] = price;
+                }
+                case CONFIRM -> {
+                    if (owners[index] == event.holdId || statuses[index] != BOOKED) {
+                        if (owners[index] != event.holdId || price != 0) prices[index] = price;
+                        owners[index] = event.holdId;
+                        statuses[index] = BOOKED;
+                    }
+                }
+                case RELEASE -> {
+                    if (owners[index] == event.holdId && statuses[index] == HELD) free(index);
+                }
+                case CANCEL -> {
+                    if (owners[index] == event.holdId && statuses[index] == BOOKED) free(index);
+                }
+            }
+        }
+        if (event.type == LedgerEventType.HOLD) {
+            holdExpiry.put(event.holdId, new long[]{event.expiresAt});
+        } else {
+            holdExpiry.remove(event.holdId);
+        }
+    }
+
+    boolean isLiveHold(long holdId, long now) {
+        long[] expiry = holdExpiry.get(holdId);
+        return expiry != null && expiry[0] > now;
+    }
+
+    int seatCount() {
+        return owners.length;
+    }
+
+    // Expired holds are dropped so snapshots don't carry them forward
+    void pruneExpired(long now) {
+        holdExpiry.values().removeIf(expiry -> expiry[0] <= now);
+        for (int index = 0; index < owners.length; index++) {
+            if (statuses[index] == HELD && !holdExpiry.containsKey(owners[index])) free(index);
+        }
+    }
+
+    private void free(int index) {
+        owners[index] = 0;
+        statuses[index] = FREE;
+        prices[index] = 0;
+    }
+
+    private void ensureCapacity(int index) {
+        if (index >= owners.length) {
+            int capacity = Math.max(owners.length * 2, index + 1);
+            owners = Arrays.copyOf(owners, capacity);
+            statuses = Arrays.copyOf(statuses, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(owners.length);
+        for (int index = 0; index < owners.length; index++) {
+            out.writeByte(statuses[index]);
+            if (statuses[index] != FREE) {
+                out.writeLong(owners[index]);
+                out.writeLong(prices[index]);
+            }
+        }
+        out.writeInt(holdExpiry.size());
+        for (Map.Entry<Long, long[]> hold : holdExpiry.entrySet()) {
+            out.writeLong(hold.getKey());
+            out.writeLong(hold.getValue()[0]);
+        }
+    }
+
+    static ScreeningLedgerState readFrom(DataInputStream in) throws IOException {
+        ScreeningLedgerState state = new ScreeningLedgerState();
+        int seats = in.readInt();
+        state.owners = new long[seats];
+        state.statuses = new byte[seats];
+        state.prices = new long[seats];
+        for (int index = 0; index < seats; index++) {
+            state.statuses[index] = in.readByte();
+            if (state.statuses[index] != FREE) {
+                state.owners[index] = in.readLong();
+                state.prices[index] = in.readLong();
+            }
+        }
+        int holds = in.readInt();
+        for (int i = 0; i < holds; i++) {
+            state.holdExpiry.put(in.readLong(), new long[]{in.readLong()});
+        }
+        return state;
+    }
+}
+
+class LedgerState {
+    final Map<String, ScreeningLedgerState> screenings = new HashMap<>();
+    long maxHoldId;
+
+    void apply(LedgerEvent event) {
+        screenings.computeIfAbsent(event.screeningId, k -> new ScreeningLedgerState()).apply(event);
+        maxHoldId = Math.max(maxHoldId, event.holdId);
+    }
+}
+
+// Append-only booking log. Events are queued and a single writer appends whole batches with one
+// fsync each (group commit). Every SNAPSHOT_INTERVAL events the writer rolls to a new segment
+// and writes a snapshot of the replayed state, so recovery reads the snapshot plus one segment.
+class BookingLedger implements ReservationListener {
+    private static final int SNAPSHOT_MAGIC = 0x424B4C47;
+    private static final int SNAPSHOT_INTERVAL = 1_000_000;
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_RECORD = 1 << 20;
+
+    private final Path directory;
+    private final BlockingQueue<PendingEvent> queue = new LinkedBlockingQueue<>();
+    private final LedgerState state = new LedgerState();
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentLength;
+    private long eventsSinceSnapshot;
+    private Thread writer;
+    // Guarded by the queue's monitor together with the enqueue, so nothing is queued behind POISON
+    private boolean closed;
+
+    public BookingLedger(Path directory) {
+        this.directory = directory;
+    }
+
+    // Loads the latest snapshot, replays the segments written after it and starts the writer
+    public LedgerState recover() throws IOException {
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve("snapshot.bin");
+        long firstSegment = 0;
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Corrupt ledger snapshot " + snapshot);
+                firstSegment = in.readLong();
+                state.maxHoldId = in.readLong();
+                int screenings = in.readInt();
+                for (int i = 0; i < screenings; i++) {
+                    String screeningId = in.readUTF();
+                    state.screenings.put(screeningId, ScreeningLedgerState.readFrom(in));
+                }
+            }
+        }
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "ledger-*.log")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long number = Long.parseLong(name.substring(7, name.length() - 4));
+                if (number >= firstSegment) segments.add(number);
+            }
+        }
+        Collections.sort(segments);
+        segmentNumber = segments.isEmpty() ? firstSegment : segments.get(segments.size() - 1);
+        for (long number : segments) {
+            replay(segmentPath(number), number == segmentNumber);
+        }
+        segment = FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentLength = segment.size();
+        syncDirectory();
+
+        writer = new Thread(this::writeLoop, "booking-ledger-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return state;
+    }
+
+    public CompletableFuture<Void> append(LedgerEvent event) {
+        PendingEvent pending = new PendingEvent(event);
+        synchronized (queue) {
+            if (!closed) {
+                queue.add(pending);
+                return pending.done;
+            }
+        }
+        pending.done.completeExceptionally(new IllegalStateException("Ledger is closed"));
+        return pending.done;
+    }
+
+    // Holds are fire-and-forget: losing one in a crash only frees its seats. Confirm and cancel
+    // wait for the fsync so a booking the caller saw is never lost.
+    @Override
+    public void onHold(SeatHold hold) {
+        append(new LedgerEvent(LedgerEventType.HOLD, hold.getScreening().getId(), hold.getId(), hold.getExpiresAt(), hold.getSeatIndexes(), LedgerEvent.pricesOf(hold)));
+    }
+    @Override
+    public void onConfirm(SeatHold hold) {
+        append(new LedgerEvent(LedgerEventType.CONFIRM, hold.getScreening().getId(), hold.getId(), 0, hold.getSeatIndexes(), LedgerEvent.pricesOf(hold))).join();
+    }
+    @Override
+    public void onRelease(SeatHold hold) {
+        append(new LedgerEvent(LedgerEventType.RELEASE, hold.getScreening().getId(), hold.getId(), 0, hold.getSeatIndexes(), new long[0]));
+    }
+    @Override
+    public void onCancel(Screening screening, long holdId, int seatIndex) {
+        append(new LedgerEvent(LedgerEventType.CANCEL, screening.getId(), holdId, 0, new int[]{seatIndex}, new long[0])).join();
+    }
+    // Expiry is derived from the logged expiresAt on replay, nothing to write
+    @Override
+    public void onExpire(SeatHold hold) {
+    }
+
+    public void close() throws InterruptedException, IOException {
+        synchronized (queue) {
+            if (closed) return;
+            closed = true;
+            queue.add(PendingEvent.POISON);
+        }
+        writer.join();
+        segment.close();
+    }
+
+    private void writeLoop() {
+        List<PendingEvent> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean stop = batch.remove(PendingEvent.POISON);
+                writeBatch(batch);
+                if (eventsSinceSnapshot >= SNAPSHOT_INTERVAL) {
+                    checkpoint();
+                }
+                if (stop) return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                for (PendingEvent pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+                discardTornTail();
+            }
+            batch.clear();
+        }
+    }
+
+    // A failed write can leave part of a record behind. Replay stops at the first bad record, so
+    // events appended after it would be lost on recovery: cut the segment back to the end of the
+    // last good batch, or move on to a new segment if even that fails.
+    private void discardTornTail() {
+        try {
+            segment.truncate(segmentLength);
+            segment.force(false);
+        } catch (IOException e) {
+            try {
+                rollSegment();
+            } catch (IOException rollFailure) {
+                System.out.println("#ERROR: Booking ledger could not open a new segment: " + rollFailure.getMessage());
+            }
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            // the segment is being abandoned, its tail is cut off on replay
+        }
+        segmentNumber++;
+        segment = FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentLength = 0;
+        syncDirectory();
+    }
+
+    // Creating, renaming and deleting files only survives a power loss once the directory is synced
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private void writeBatch(List<PendingEvent> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        CRC32 crc = new CRC32();
+        for (PendingEvent pending : batch) {
+            record.reset();
+            pending.event.writeTo(recordOut);
+            crc.reset();
+            crc.update(record.toByteArray());
+            out.writeInt(record.size());
+            record.writeTo(out);
+            out.writeInt((int) crc.getValue());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        segment.force(false);
+        segmentLength += bytes.size();
+        for (PendingEvent pending : batch) {
+            state.apply(pending.event);
+            pending.done.complete(null);
+        }
+        eventsSinceSnapshot += batch.size();
+    }
+
+    // The snapshot is synced before it replaces the old one, and the rename is synced before the
+    // segments it covers are deleted, so a crash at any point leaves a complete ledger behind
+    private void checkpoint() throws IOException {
+        long previousSegment = segmentNumber;
+        rollSegment();
+
+        long now = System.currentTimeMillis();
+        Path temporary = directory.resolve("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(segmentNumber);
+            out.writeLong(state.maxHoldId);
+            out.writeInt(state.screenings.size());
+            for (Map.Entry<String, ScreeningLedgerState> screening : state.screenings.entrySet()) {
+                screening.getValue().pruneExpired(now);
+                out.writeUTF(screening.getKey());
+                screening.getValue().writeTo(out);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve("snapshot.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        for (long number = previousSegment; number >= 0 && Files.deleteIfExists(segmentPath(number)); number--) {
+            // older segments are fully covered by the snapshot
+        }
+        eventsSinceSnapshot = 0;
+    }
+
+    // A torn or corrupt record at the tail of the last segment is a crash mid-write and is cut off
+    private void replay(Path path, boolean last) throws IOException {
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD) break;
+                byte[] record = new byte[length];
+                try {
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != in.readInt()) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                state.apply(LedgerEvent.readFrom(new DataInputStream(new ByteArrayInputStream(record))));
+                validLength += 8 + length;
+            }
+        }
+        if (last && validLength < Files.size(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("ledger-%08d.log", number));
+    }
+
+    private static class PendingEvent {
+        static final PendingEvent POISON = new PendingEvent(null);
+        final LedgerEvent event;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingEvent(LedgerEvent event) {
+            this.event = event;
+        }
+    }
+}
+
+class WaitlistEntry {
+    private final long id;
+    private final Screening screening;
+    private final int seatCount;
+    private final long joinedAt;
+    private final Consumer<SeatHold> onOffer;
+
+    public WaitlistEntry(long id, Screening screening, int seatCount, long joinedAt, Consumer<SeatHold> onOffer) {
+        this.id = id;
+        this.screening = screening;
+        this.seatCount = seatCount;
+        this.joinedAt = joinedAt;
+        this.onOffer = onOffer;
+    }
+
+    public long getId() {
+        return id;
+    }
+    public Screening getScreening() {
+        return screening;
+    }
+    public int getSeatCount() {
+        return seatCount;
+    }
+    public long getJoinedAt() {
+        return joinedAt;
+    }
+    public Consumer<SeatHold> getOnOffer() {
+        return onOffer;
+    }
+
+    // Earliest first; for the same join time smaller groups are easier to seat
+    static final Comparator<WaitlistEntry> ORDER = Comparator.comparingLong(WaitlistEntry::getJoinedAt)
+            .thenComparingInt(WaitlistEntry::getSeatCount)
+            .thenComparingLong(WaitlistEntry::getId);
+}
+
+// Backfills freed seats from a per-screening waitlist. Release/cancel/expire callbacks only
+// schedule work for the screening, offers are made on a background thread so the cancelling
+// request never waits for them. An offer is a short hold handed to the entry's callback; if it is
+// not confirmed in time, its expiry frees the seats and the next entries are tried.
+class WaitlistService implements ReservationListener {
+    static final Duration DEFAULT_OFFER_TTL = Duration.ofMinutes(5);
+    private static final int MAX_PARKED = 32;
+
+    private final MovieTicketBooking booking;
+    private final Duration offerTtl;
+    private final Map<Screening, PriorityQueue<WaitlistEntry>> waitlists = new ConcurrentHashMap<>();
+    private final Map<Screening, AtomicBoolean> scheduled = new ConcurrentHashMap<>();
+    private final AtomicLong entryIds = new AtomicLong();
+    private final ExecutorService offers = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "waitlist-offers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public WaitlistService(MovieTicketBooking booking, Duration offerTtl) {
+        this.booking = booking;
+        this.offerTtl = offerTtl;
+    }
+
+    public WaitlistEntry join(Screening screening, int seatCount, Consumer<SeatHold> onOffer) {
+        WaitlistEntry entry = new WaitlistEntry(entryIds.incrementAndGet(), screening, seatCount, System.currentTimeMillis(), onOffer);
+        PriorityQueue<WaitlistEntry> waitlist = waitlists.computeIfAbsent(screening, k -> new PriorityQueue<>(WaitlistEntry.ORDER));
+        synchronized (waitlist) {
+            waitlist.add(entry);
+        }
+        // Seats may have been freed between the sold-out response and joining
+        schedule(screening);
+        return entry;
+    }
+
+    public boolean leave(WaitlistEntry entry) {
+        PriorityQueue<WaitlistEntry> waitlist = waitlists.get(entry.getScreening());
+        if (waitlist == null) return false;
+        synchronized (waitlist) {
+            return waitlist.remove(entry);
+        }
+    }
+
+    public int size(Screening screening) {
+        PriorityQueue<WaitlistEntry> waitlist = waitlists.get(screening);
+        if (waitlist == null) return 0;
+        synchronized (waitlist) {
+            return waitlist.size();
+        }
+    }
+
+    @Override
+    public void onHold(SeatHold hold) {
+    }
+    @Override
+    public void onConfirm(SeatHold hold) {
+    }
+    @Override
+    public void onRelease(SeatHold hold) {
+        schedule(hold.getScreening());
+    }
+    @Override
+    public void onCancel(Screening screening, long holdId, int seatIndex) {
+        schedule(screening);
+    }
+    @Override
+    public void onExpire(SeatHold hold) {
+        schedule(hold.getScreening());
+    }
+
+    // Coalesces bursts of freed seats into one pass per screening
+    private void schedule(Screening screening) {
+        if (!waitlists.containsKey(screening)) return;
+        AtomicBoolean pending = scheduled.computeIfAbsent(screening, k -> new AtomicBoolean());
+        if (pending.compareAndSet(false, true)) {
+            offers.submit(() -> {
+                pending.set(false);
+                offerFreedSeats(screening);
+            });
+        }
+    }
+
+    private void offerFreedSeats(Screening screening) {
+        PriorityQueue<WaitlistEntry> waitlist = waitlists.get(screening);
+        List<WaitlistEntry> offered = new ArrayList<>();
+        List<SeatHold> holds = new ArrayList<>();
+        // Entries from the head that don't fit yet; they go back and keep their place for the next
+        // freed seats. Capped so a pass stays cheap however long the waitlist is.
+        List<WaitlistEntry> parked = new ArrayList<>();
+        int available = booking.getSeatMap(screening).getAvailableCount();
+        synchronized (waitlist) {
+            while (available > 0 && parked.size() < MAX_PARKED && !waitlist.isEmpty()) {
+                WaitlistEntry entry = waitlist.poll();
+                SeatHold hold = entry.getSeatCount() > available ? null
+                        : booking.holdBestAvailable(screening, entry.getSeatCount(), offerTtl);
+                if (hold == null) {
+                    parked.add(entry);
+                    continue;
+                }
+                available -= entry.getSeatCount();
+                offered.add(entry);
+                holds.add(hold);
+            }
+            waitlist.addAll(parked);
+        }
+        // Callbacks run outside the lock so they can confirm, leave or join freely
+        for (int i = 0; i < offered.size(); i++) {
+            try {
+                offered.get(i).getOnOffer().accept(holds.get(i));
+            } catch (RuntimeException e) {
+                System.out.println("#ERROR: Waitlist offer callback failed for entry " + offered.get(i).getId() + ": " + e.getMessage());
+            }
+        }
+    }
+}
+
+// Per-screening prices as long cents, one entry per seat index. Tables are immutable and swapped
+// whole, so a seat-map quote is an array read per seat.
+class PriceTable {
+    private final long multiplierBp;
+    private final int timeBand;
+    private final long builtAt;
+    private final long[] cents;
+
+    public PriceTable(long multiplierBp, int timeBand, long builtAt, long[] cents) {
+        this.multiplierBp = multiplierBp;
+        this.timeBand = timeBand;
+        this.builtAt = builtAt;
+        this.cents = cents;
+    }
+
+    public long getMultiplierBp() {
+        return multiplierBp;
+    }
+    public int getTimeBand() {
+        return timeBand;
+    }
+    public long getBuiltAt() {
+        return builtAt;
+    }
+    public long getCents(int index) {
+        return cents[index];
+    }
+    public BigDecimal getPrice(int index) {
+        return BigDecimal.valueOf(cents[index], 2);
+    }
+    // Same prices, only the check time moves forward
+    PriceTable rechecked(long now) {
+        return new PriceTable(multiplierBp, timeBand, now, cents);
+    }
+}
+
+class ScreeningPricing {
+    static final int VELOCITY_BUCKETS = 10;
+    static final long BUCKET_MILLIS = 60_000;
+
+    final ScreeningSeats seats;
+    final int capacity;
+    final AtomicInteger sold = new AtomicInteger();
+    // Bookings per minute over the last VELOCITY_BUCKETS minutes, as a ring
+    private final long[] bucketMinute = new long[VELOCITY_BUCKETS];
+    private final int[] bucketCount = new int[VELOCITY_BUCKETS];
+    volatile PriceTable table;
+
+    public ScreeningPricing(ScreeningSeats seats) {
+        this.seats = seats;
+        int seatCount = 0;
+        int bookedCount = 0;
+        for (int index = 0; index < seats.size(); index++) {
+            if (seats.getSeat(index) == null) continue;
+            seatCount++;
+            if (seats.booked.get(index)) bookedCount++;
+        }
+        this.capacity = Math.max(1, seatCount);
+        this.sold.set(bookedCount);
+        Arrays.fill(bucketMinute, -1);
+    }
+
+    public synchronized void recordBookings(int count, long now) {
+        long minute = now / BUCKET_MILLIS;
+        int bucket = (int) (minute % VELOCITY_BUCKETS);
+        if (bucketMinute[bucket] != minute) {
+            bucketMinute[bucket] = minute;
+            bucketCount[bucket] = 0;
+        }
+        bucketCount[bucket] += count;
+    }
+
+    public synchronized int recentBookings(long now) {
+        long minute = now / BUCKET_MILLIS;
+        int total = 0;
+        for (int bucket = 0; bucket < VELOCITY_BUCKETS; bucket++) {
+            if (minute - bucketMinute[bucket] < VELOCITY_BUCKETS) {
+                total += bucketCount[bucket];
+            }
+        }
+        return total;
+    }
+}
+
+// Demand-based prices: base tier cents scaled by a multiplier in basis points built from occupancy,
+// time to showtime and booking velocity. Bookings and cancellations update the counters and only
+// rebuild a screening's table when the multiplier moves to another step or the time band changes;
+// quotes re-check a table at most once per REFRESH_MILLIS so time and velocity decay still apply.
+class PricingEngine implements ReservationListener {
+    private static final long BASE_BP = 10_000;
+    private static final long MIN_BP = 8_000;
+    private static final long MAX_BP = 20_000;
+    private static final long STEP_BP = 250;
+    private static final long MAX_OCCUPANCY_BP = 5_000;
+    private static final long MAX_VELOCITY_BP = 2_500;
+    private static final long REFRESH_MILLIS = 60_000;
+    // Minutes to showtime: more than a week, a day, two hours, then the last two hours
+    private static final long[] TIME_BAND_MINUTES = {7 * 24 * 60, 24 * 60, 2 * 60};
+    private static final long[] TIME_BAND_BP = {-1_000, 0, 500, 1_000};
+
+    private final SeatReservationEngine reservationEngine;
+    private final Map<Screening, ScreeningPricing> pricingByScreening = new ConcurrentHashMap<>();
+
+    public PricingEngine(SeatReservationEngine reservationEngine) {
+        this.reservationEngine = reservationEngine;
+    }
+
+    public PriceTable getTable(Screening screening, long now) {
+        ScreeningPricing pricing = getPricing(screening);
+        PriceTable table = pricing.table;
+        if (table == null || now - table.getBuiltAt() >= REFRESH_MILLIS) {
+            table = refresh(pricing, now);
+        }
+        return table;
+    }
+
+    public long[] quote(Screening screening, int[] seatIndexes, long now) {
+        PriceTable table = getTable(screening, now);
+        long[] cents = new long[seatIndexes.length];
+        for (int i = 0; i < seatIndexes.length; i++) {
+            cents[i] = table.getCents(seatIndexes[i]);
+        }
+        return cents;
+    }
+
+    @Override
+    public void onHold(SeatHold hold) {
+    }
+    @Override
+    public void onConfirm(SeatHold hold) {
+        long now = System.currentTimeMillis();
+        ScreeningPricing pricing = getPricing(hold.getScreening());
+        int count = hold.getSeatIndexes().length;
+        pricing.sold.addAndGet(count);
+        pricing.recordBookings(count, now);
+        refresh(pricing, now);
+    }
+    @Override
+    public void onRelease(SeatHold hold) {
+    }
+    @Override
+    public void onCancel(Screening screening, long holdId, int seatIndex) {
+        ScreeningPricing pricing = getPricing(screening);
+        pricing.sold.decrementAndGet();
+        refresh(pricing, System.currentTimeMillis());
+    }
+    @Override
+    public void onExpire(SeatHold hold) {
+    }
+
+    private ScreeningPricing getPricing(Screening screening) {
+        return pricingByScreening.computeIfAbsent(screening, s -> new ScreeningPricing(reservationEngine.getSeats(s)));
+    }
+
+    private PriceTable refresh(ScreeningPricing pricing, long now) {
+        int timeBand = timeBand(pricing.seats.getScreening(), now);
+        long multiplierBp = multiplierBp(pricing, timeBand, now);
+        synchronized (pricing) {
+            PriceTable current = pricing.table;
+            if (current != null && current.getMultiplierBp() == multiplierBp && current.getTimeBand() == timeBand) {
+                if (now - current.getBuiltAt() < REFRESH_MILLIS) return current;
+                current = current.rechecked(now);
+            } else {
+                current = new PriceTable(multiplierBp, timeBand, now, buildPrices(pricing.seats, multiplierBp));
+            }
+            pricing.table = current;
+            return current;
+        }
+    }
+
+    private static long multiplierBp(ScreeningPricing pricing, int timeBand, long now) {
+        long occupancyBp = Math.min(BASE_BP, Math.max(0, pricing.sold.get()) * BASE_BP / pricing.capacity);
+        // Quadratic so the surcharge stays small until the room is filling up
+        long occupancySurcharge = occupancyBp * occupancyBp * MAX_OCCUPANCY_BP / (BASE_BP * BASE_BP);
+        long velocityBp = pricing.recentBookings(now) * BASE_BP / pricing.capacity;
+        long velocitySurcharge = Math.min(MAX_VELOCITY_BP, velocityBp);
+        long multiplier = BASE_BP + occupancySurcharge + velocitySurcharge + TIME_BAND_BP[timeBand];
+        multiplier = Math.max(MIN_BP, Math.min(MAX_BP, multiplier));
+        return multiplier / STEP_BP * STEP_BP;
+    }
+
+    private static int timeBand(Screening screening, long now) {
+        long minutesToShow = (screening.getStartTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() - now) / 60_000;
+        int band = 0;
+        while (band < TIME_BAND_MINUTES.length && minutesToShow <= TIME_BAND_MINUTES[band]) {
+            band++;
+        }
+        return band;
+    }
+
+    private static long[] buildPrices(ScreeningSeats seats, long multiplierBp) {
+        long[] cents = new long[seats.size()];
+        for (int index = 0; index < cents.length; index++) {
+            Seat seat = seats.getSeat(index);
+            if (seat == null) continue;
+            // Rounded to whole cents, half up
+            cents[index] = (seat.getPricingStrategy().getBaseCents() * multiplierBp + BASE_BP / 2) / BASE_BP;
+        }
+        return cents;
+    }
+}
+
+// Holds claim seats bit by bit in ascending order and roll back on the first conflict, so a
+// multi-seat hold is all-or-nothing without any lock. Expired holds are reclaimed by the request
+// that runs into them, and a background sweep of the active holds every EXPIRY_SWEEP_MILLIS frees
+// the ones nobody contends for; holding a seat never touches a shared timer queue.
+class SeatReservationEngine {
+    static final long EXPIRY_SWEEP_MILLIS = 250;
+
+    private final Map<Screening, ScreeningSeats> seatsByScreening = new ConcurrentHashMap<>();
+    private final Map<Long, SeatHold> activeHolds = new ConcurrentHashMap<>();
+    private final AtomicLong holdIds = new AtomicLong();
+    private final List<ReservationListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hold-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile PricingEngine pricing;
+    private volatile ReservationListener journal;
+
+    public SeatReservationEngine() {
+        expiry.scheduleWithFixedDelay(this::sweepExpiredHolds, EXPIRY_SWEEP_MILLIS, EXPIRY_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void addListener(ReservationListener listener) {
+        listeners.add(listener);
+    }
+
+    // The journal hears about every change before the listeners do. Confirm and cancel wait for it
+    // before changing seat state, so a journal write that fails leaves nothing to undo.
+    public void setJournal(ReservationListener journal) {
+        this.journal = journal;
+    }
+
+    // Holds lock in the quoted price so it can't change between hold and confirm
+    public void setPricing(PricingEngine pricing) {
+        this.pricing = pricing;
+    }
+
+    public ScreeningSeats getSeats(Screening screening) {
+        return seatsByScreening.computeIfAbsent(screening, ScreeningSeats::new);
+    }
+
+    public SeatHold hold(Screening screening, List<Seat> requestedSeats, Duration ttl) {
+        ScreeningSeats seats = getSeats(screening);
+        int[] indexes = new int[requestedSeats.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = seats.indexOf(requestedSeats.get(i));
+            if (indexes[i] < 0) return null;
+        }
+        Arrays.sort(indexes);
+        for (int i = 1; i < indexes.length; i++) {
+            if (indexes[i] == indexes[i - 1]) return null;
+        }
+
+        long now = System.currentTimeMillis();
+        SeatHold hold = new SeatHold(holdIds.incrementAndGet(), screening, indexes, now + ttl.toMillis());
+        for (int i = 0; i < indexes.length; i++) {
+            int index = indexes[i];
+            if (!seats.claim(index) && !(expireHolderOf(seats, index, now) && seats.claim(index))) {
+                for (int claimed = 0; claimed < i; claimed++) {
+                    seats.holders.set(indexes[claimed], 0);
+                    seats.unclaim(indexes[claimed]);
+                }
+                return null;
+            }
+            seats.holders.set(index, hold.getId());
+        }
+        PricingEngine currentPricing = pricing;
+        if (currentPricing != null) {
+            hold.lockPrices(currentPricing.quote(screening, indexes, now));
+        }
+        // Only published once every seat is claimed, so a half-built hold can never be expired
+        activeHolds.put(hold.getId(), hold);
+        ReservationListener currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.onHold(hold);
+        }
+        for (ReservationListener listener : listeners) {
+            listener.onHold(hold);
+        }
+        return hold;
+    }
+
+    public List<MovieTicket> confirm(long holdId) {
+        SeatHold hold = activeHolds.get(holdId);
+        if (hold == null || hold.isExpired(System.currentTimeMillis()) || !hold.transition(HoldStatus.CONFIRMED)) {
+            return null;
+        }
+        activeHolds.remove(holdId);
+        ReservationListener currentJournal = journal;
+        if (currentJournal != null) {
+            try {
+                currentJournal.onConfirm(hold);
+            } catch (RuntimeException e) {
+                // Not durably booked, so the seats go back instead of being sold
+                freeSeats(hold);
+                for (ReservationListener listener : listeners) {
+                    listener.onRelease(hold);
+                }
+                throw e;
+            }
+        }
+        ScreeningSeats seats = getSeats(hold.getScreening());
+        List<MovieTicket> tickets = new ArrayList<>();
+        int[] indexes = hold.getSeatIndexes();
+        long[] prices = hold.getPriceCents();
+        // The hold id stays in holders as the owner of the booked seat
+        for (int i = 0; i < indexes.length; i++) {
+            seats.booked.trySet(indexes[i]);
+            Seat seat = seats.getSeat(indexes[i]);
+            long cents = prices == null ? seat.getPricingStrategy().getBaseCents() : prices[i];
+            tickets.add(new MovieTicket(hold.getScreening(), seat, hold.getId(), cents));
+        }
+        for (ReservationListener listener : listeners) {
+            listener.onConfirm(hold);
+        }
+        return tickets;
+    }
+
+    public boolean release(long holdId) {
+        SeatHold hold = activeHolds.get(holdId);
+        if (hold == null || !hold.transition(HoldStatus.RELEASED)) return false;
+        freeSeats(hold);
+        ReservationListener currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.onRelease(hold);
+        }
+        for (ReservationListener listener : listeners) {
+            listener.onRelease(hold);
+        }
+        return true;
+    }
+
+    public boolean cancel(MovieTicket ticket) {
+        ScreeningSeats seats = getSeats(ticket.getScreening());
+        int index = seats.indexOf(ticket.seat);
+        long owner = ticket.getHoldId();
+        // Only the booking that still owns the seat can free it; a stale ticket from an earlier
+        // booking of the same seat fails here instead of cancelling the current one
+        if (index < 0 || owner == 0 || !seats.holders.compareAndSet(index, owner, 0)) return false;
+        ReservationListener currentJournal = journal;
+        if (currentJournal != null) {
+            try {
+                currentJournal.onCancel(ticket.getScreening(), owner, index);
+            } catch (RuntimeException e) {
+                // Still booked as far as the ledger knows, so it stays booked here too
+                seats.holders.set(index, owner);
+                throw e;
+            }
+        }
+        seats.booked.clear(index);
+        seats.unclaim(index);
+        for (ReservationListener listener : listeners) {
+            listener.onCancel(ticket.getScreening(), owner, index);
+        }
+        return true;
+    }
+
+    public boolean isAvailable(Screening screening, Seat seat) {
+        ScreeningSeats seats = getSeats(screening);
+        int index = seats.indexOf(seat);
+        if (index < 0) return false;
+        if (seats.isAvailable(index)) return true;
+        SeatHold hold = activeHolds.get(seats.holders.get(index));
+        return hold != null && hold.isExpired(System.currentTimeMillis());
+    }
+
+    // Rebuilds a screening from replayed ledger state, returns the tickets of its booked seats
+    public List<MovieTicket> restore(Screening screening, ScreeningLedgerState state, long now) {
+        ScreeningSeats seats = getSeats(screening);
+        Map<Long, List<Integer>> heldSeats = new HashMap<>();
+        List<MovieTicket> tickets = new ArrayList<>();
+        for (int index = 0; index < Math.min(state.seatCount(), seats.size()); index++) {
+            byte status = state.statuses[index];
+            long owner = state.owners[index];
+            Seat seat = seats.getSeat(index);
+            if (seat == null) continue;
+            if (status == ScreeningLedgerState.BOOKED) {
+                seats.claim(index);
+                seats.booked.trySet(index);
+                seats.holders.set(index, owner);
+                long cents = state.prices[index] != 0 ? state.prices[index] : seat.getPricingStrategy().getBaseCents();
+                tickets.add(new MovieTicket(screening, seat, owner, cents));
+            } else if (status == ScreeningLedgerState.HELD && state.isLiveHold(owner, now)) {
+                seats.claim(index);
+                seats.holders.set(index, owner);
+                heldSeats.computeIfAbsent(owner, k -> new ArrayList<>()).add(index);
+            }
+        }
+        for (Map.Entry<Long, List<Integer>> held : heldSeats.entrySet()) {
+            int[] indexes = held.getValue().stream().mapToInt(Integer::intValue).toArray();
+            long expiresAt = state.holdExpiry.get(held.getKey())[0];
+            SeatHold hold = new SeatHold(held.getKey(), screening, indexes, expiresAt);
+            long[] priceCents = new long[indexes.length];
+            boolean priced = true;
+            for (int i = 0; i < indexes.length; i++) {
+                priceCents[i] = state.prices[indexes[i]];
+                priced &= priceCents[i] != 0;
+            }
+            // A hold still being paid for keeps the price it was quoted before the restart
+            if (priced) hold.lockPrices(priceCents);
+            activeHolds.put(held.getKey(), hold);
+        }
+        return tickets;
+    }
+
+    public void advanceHoldIds(long lastUsed) {
+        holdIds.accumulateAndGet(lastUsed, Math::max);
+    }
+
+    // Sweeps every expired hold at once; runs every EXPIRY_SWEEP_MILLIS in the background
+    public int expireHolds() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (SeatHold hold : activeHolds.values()) {
+            if (expire(hold, now)) expired++;
+        }
+        return expired;
+    }
+
+    // An exception escaping here would cancel every later sweep
+    private void sweepExpiredHolds() {
+        try {
+            expireHolds();
+        } catch (RuntimeException e) {
+            System.out.println("#ERROR: Hold expiry sweep failed: " + e.getMessage());
+        }
+    }
+
+    private boolean expireHolderOf(ScreeningSeats seats, int index, long now) {
+        SeatHold holder = activeHolds.get(seats.holders.get(index));
+        return holder != null && expire(holder, now);
+    }
+
+    private boolean expire(SeatHold hold, long now) {
+        if (!hold.isExpired(now) || !hold.transition(HoldStatus.EXPIRED)) return false;
+        freeSeats(hold);
+        ReservationListener currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.onExpire(hold);
+        }
+        for (ReservationListener listener : listeners) {
+            listener.onExpire(hold);
+        }
+        return true;
+    }
+
+    private void freeSeats(SeatHold hold) {
+        activeHolds.remove(hold.getId());
+        ScreeningSeats seats = getSeats(hold.getScreening());
+        for (int index : hold.getSeatIndexes()) {
+            seats.holders.compareAndSet(index, hold.getId(), 0);
+            seats.unclaim(index);
+        }
+    }
+}
 
 public class MovieTicketBooking {
     private final List<Movie>  movies;
     private final List<Cinema> cinemas;
     private final ScreeningManager screeningManager;
+    private final SeatReservationEngine reservationEngine;
+    private final SeatBlockFinder seatBlockFinder;
+    private final BookingLedger ledger;
+    private final WaitlistService waitlistService;
+    private final PricingEngine pricingEngine;
+    private static final Duration SINGLE_BOOKING_HOLD = Duration.ofSeconds(30);
+    private static final int BEST_AVAILABLE_ATTEMPTS = 5;
 
     public MovieTicketBooking(){
+        this(null);
+    }
+
+    public MovieTicketBooking(BookingLedger ledger){
+        this(ledger, WaitlistService.DEFAULT_OFFER_TTL);
+    }
+
+    public MovieTicketBooking(BookingLedger ledger, Duration waitlistOfferTtl){
+        this.ledger = ledger;
         movies = new ArrayList<>();
         cinemas = new ArrayList<>();
-        screeningManager = new ScreeningManager();
+        reservationEngine = new SeatReservationEngine();
+        screeningManager = new ScreeningManager(reservationEngine);
+        seatBlockFinder = new SeatBlockFinder(0.6, 0.5, 2.0);
+        waitlistService = new WaitlistService(this, waitlistOfferTtl);
+        reservationEngine.addListener(waitlistService);
+        pricingEngine = new PricingEngine(reservationEngine);
+        reservationEngine.setPricing(pricingEngine);
+        reservationEngine.addListener(pricingEngine);
     }
 
     public void addMovie(Movie movie) {
@@ -298,19 +2128,101 @@ public class MovieTicketBooking {
     }
     public void addCinema(Cinema cinema) {
         cinemas.add(cinema);
+        screeningManager.addCinema(cinema);
+    }
+    public void addRoom(Cinema cinema, Room room) {
+        cinema.addRoom(room);
+        screeningManager.addCinema(cinema);
     }
     public void addScreening(Screening screening) {
         screeningManager.addScreening(screening);
     }
-    public void bookTicket(Screening screening, Seat seat) {
-        MovieTicket ticket = new MovieTicket(screening, seat);
-        screeningManager.addTicket(ticket);
+
+    // Call once all screenings are registered and before taking bookings; from then on every
+    // hold/confirm/release/cancel is written to the ledger
+    public void recover() throws IOException {
+        if (ledger == null) return;
+        LedgerState state = ledger.recover();
+        reservationEngine.advanceHoldIds(state.maxHoldId);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ScreeningLedgerState> entry : state.screenings.entrySet()) {
+            Screening screening = screeningManager.getScreening(entry.getKey());
+            if (screening == null) continue;
+            for (MovieTicket ticket : reservationEngine.restore(screening, entry.getValue(), now)) {
+                screeningManager.addTicket(ticket);
+            }
+        }
+        reservationEngine.setJournal(ledger);
+    }
+    // Returns null when the seat is already held or booked for this screening
+    public MovieTicket bookTicket(Screening screening, Seat seat) {
+        SeatHold hold = holdSeats(screening, List.of(seat), SINGLE_BOOKING_HOLD);
+        if (hold == null) return null;
+        List<MovieTicket> tickets = confirmHold(hold.getId());
+        return tickets == null ? null : tickets.get(0);
+    }
+
+    public SeatHold holdSeats(Screening screening, List<Seat> seats, Duration ttl) {
+        return reservationEngine.hold(screening, seats, ttl);
+    }
+
+    // Holds the best block of adjacent seats; retries on a fresh snapshot if another buyer wins the race
+    public SeatHold holdBestAvailable(Screening screening, int count, Duration ttl) {
+        for (int attempt = 0; attempt < BEST_AVAILABLE_ATTEMPTS; attempt++) {
+            List<Seat> seats = seatBlockFinder.findBestBlock(screeningManager.getAvailability(screening), count);
+            if (seats == null) return null;
+            SeatHold hold = reservationEngine.hold(screening, seats, ttl);
+            if (hold != null) return hold;
+        }
+        return null;
+    }
+
+    public List<MovieTicket> confirmHold(long holdId) {
+        List<MovieTicket> tickets = reservationEngine.confirm(holdId);
+        if (tickets != null) {
+            for (MovieTicket ticket : tickets) {
+                screeningManager.addTicket(ticket);
+            }
+        }
+        return tickets;
+    }
+
+    public boolean releaseHold(long holdId) {
+        return reservationEngine.release(holdId);
+    }
+
+    public boolean cancelTicket(MovieTicket ticket) {
+        if (!reservationEngine.cancel(ticket)) return false;
+        screeningManager.removeTicket(ticket);
+        return true;
     }
 
     public List<Seat> getAvailableSeats(Screening screening) {
         return screeningManager.getAvailableSeats(screening);
     }
 
+    // onOffer receives a short hold on freed seats, to be passed to confirmHold
+    public WaitlistEntry joinWaitlist(Screening screening, int seatCount, Consumer<SeatHold> onOffer) {
+        return waitlistService.join(screening, seatCount, onOffer);
+    }
+
+    public boolean leaveWaitlist(WaitlistEntry entry) {
+        return waitlistService.leave(entry);
+    }
+
+    public SeatAvailabilitySnapshot getSeatMap(Screening screening) {
+        return screeningManager.getAvailability(screening);
+    }
+
+    // Current prices for every seat of the screening, indexed like the seat map (row * cols + col)
+    public PriceTable getPriceTable(Screening screening) {
+        return pricingEngine.getTable(screening, System.currentTimeMillis());
+    }
+
+    public List<Screening> searchScreenings(ScreeningQuery query) {
+        return screeningManager.searchScreenings(query);
+    }
+
     public int getTicketCount(Screening screening) {
         return screeningManager.ticketsByScreenings.get(screening).size();
     }
@@ -320,3 +2232,90 @@ public class MovieTicketBooking {
     }
 
 }
+
+// An offer nobody confirms must move on to the next waiter once its hold expires
+class WaitlistOfferCheck {
+    public static void main(String[] args) throws InterruptedException {
+        ClassicLayout layout = new ClassicLayout(1, 2);
+        layout.addSeat(new Seat(0, new NormalRate()), 0, 0);
+        layout.addSeat(new Seat(1, new NormalRate()), 0, 1);
+        Screening screening = new Screening(new Movie("Sold out", 120), new Room("1", layout), LocalDateTime.now().plusDays(1), LocalDateTime.now().plusDays(1).plusHours(2));
+        MovieTicketBooking booking = new MovieTicketBooking(null, Duration.ofMillis(100));
+        booking.addScreening(screening);
+        MovieTicket first = booking.bookTicket(screening, layout.getSeatByNumber(0));
+        booking.bookTicket(screening, layout.getSeatByNumber(1));
+
+        BlockingQueue<String> offers = new LinkedBlockingQueue<>();
+        List<MovieTicket> confirmed = new CopyOnWriteArrayList<>();
+        booking.joinWaitlist(screening, 1, hold -> offers.add("ignored " + hold.getId()));
+        Thread.sleep(5);
+        booking.joinWaitlist(screening, 1, hold -> {
+            List<MovieTicket> tickets = booking.confirmHold(hold.getId());
+            if (tickets != null) confirmed.addAll(tickets);
+            offers.add("confirmed " + hold.getId());
+        });
+        booking.cancelTicket(first);
+
+        String firstOffer = offers.poll(2, TimeUnit.SECONDS);
+        String secondOffer = offers.poll(2, TimeUnit.SECONDS);
+        boolean passedOn = firstOffer != null && firstOffer.startsWith("ignored") && secondOffer != null && secondOffer.startsWith("confirmed");
+        System.out.println("offers: " + firstOffer + ", " + secondOffer + "; second waiter booked " + confirmed.size()
+                + " seat(s), " + booking.getSeatMap(screening).getAvailableCount() + " seats free, "
+                + (passedOn && confirmed.size() == 1 ? "OK" : "FAILED"));
+    }
+}
+
+class FlashSaleSimulation {
+    public static void main(String[] args) throws InterruptedException {
+        int attempts = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int rows = 50;
+        int cols = 40;
+
+        ClassicLayout layout = new ClassicLayout(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                layout.addSeat(new Seat(row * cols + col, new NormalRate()), row, col);
+            }
+        }
+        Room room = new Room("1", layout);
+        Screening screening = new Screening(new Movie("Premiere", 150), room, LocalDateTime.now(), LocalDateTime.now().plusMinutes(150));
+        MovieTicketBooking booking = new MovieTicketBooking();
+        booking.addScreening(screening);
+
+        AtomicInteger confirmed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            executor.submit(() -> {
+                Random random = new Random();
+                int groupSize = 1 + random.nextInt(4);
+                int first = random.nextInt(rows * cols - groupSize);
+                List<Seat> seats = new ArrayList<>();
+                for (int i = 0; i < groupSize; i++) {
+                    seats.add(layout.getSeatByNumber(first + i));
+                }
+                SeatHold hold = booking.holdSeats(screening, seats, Duration.ofSeconds(5));
+                if (hold == null) return;
+                // Some buyers walk away from their hold
+                if (random.nextInt(10) == 0) {
+                    booking.releaseHold(hold.getId());
+                } else if (booking.confirmHold(hold.getId()) != null) {
+                    confirmed.addAndGet(groupSize);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.MINUTES);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        Set<Seat> soldSeats = Collections.newSetFromMap(new IdentityHashMap<>());
+        int doubleBooked = 0;
+        for (MovieTicket ticket : booking.getTicketsForScreening(screening)) {
+            if (!soldSeats.add(ticket.getSeat())) doubleBooked++;
+        }
+        System.out.println(attempts + " attempts on " + threads + " threads in " + millis + "ms, "
+                + confirmed.get() + " seats sold of " + rows * cols + ", double booked: " + doubleBooked
+                + ", still available: " + booking.getSeatMap(screening).getAvailableCount());
+    }
+}
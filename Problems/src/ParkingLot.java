@@ -1,8 +1,44 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 
 enum VehicleSize{
     SMALL,
@@ -56,16 +92,25 @@ class Truck extends Vehicle {
 //      Just to accomodate flexibility in algorithms. In future we may decide park multiple Small vehicles in Medium
 //      Or Large.
 
+// Spot state is written by whichever gate won the spot from its FreeSpotPool and read by others
 abstract class ParkingSpot {
-    private boolean isAvailable;
+    private volatile boolean isAvailable;
     private VehicleSize vehicleSize;
     private int spotNumber;
-    private Vehicle vehicle;
+    private int floor;
+    private int distanceToEntrance;
+    private volatile Vehicle vehicle;
 
     public ParkingSpot(boolean isAvailable, VehicleSize vehicleSize, int spotNumber) {
+        this(isAvailable, vehicleSize, spotNumber, 0, spotNumber);
+    }
+
+    public ParkingSpot(boolean isAvailable, VehicleSize vehicleSize, int spotNumber, int floor, int distanceToEntrance) {
         this.isAvailable = isAvailable;
         this.vehicleSize = vehicleSize;
         this.spotNumber = spotNumber;
+        this.floor = floor;
+        this.distanceToEntrance = distanceToEntrance;
         this.vehicle = null;
     }
 
@@ -78,6 +123,12 @@ abstract class ParkingSpot {
     public int getSpotNumber() {
         return spotNumber;
     }
+    public int getFloor() {
+        return floor;
+    }
+    public int getDistanceToEntrance() {
+        return distanceToEntrance;
+    }
     public Vehicle getVehicle() {
         return vehicle;
     }
@@ -90,12 +141,18 @@ abstract class ParkingSpot {
     }
     public abstract void park(Vehicle vehicle);
     public abstract void unpark();
+    public void unpark(Vehicle vehicle) {
+        unpark();
+    }
 }
 
 class CompactSpot extends ParkingSpot {
     public CompactSpot(int spotNumber) {
         super(true, VehicleSize.SMALL, spotNumber);
     }
+    public CompactSpot(int spotNumber, int floor, int distanceToEntrance) {
+        super(true, VehicleSize.SMALL, spotNumber, floor, distanceToEntrance);
+    }
     @Override
     public void park(Vehicle vehicle) {
         super.setAvailable(false);
@@ -113,6 +170,9 @@ class RegulartSpot extends ParkingSpot {
     public RegulartSpot(int spotNumber) {
         super(true, VehicleSize.MEDIUM, spotNumber);
     }
+    public RegulartSpot(int spotNumber, int floor, int distanceToEntrance) {
+        super(true, VehicleSize.MEDIUM, spotNumber, floor, distanceToEntrance);
+    }
     @Override
     public void park(Vehicle vehicle) {
         super.setAvailable(false);
@@ -126,72 +186,637 @@ class RegulartSpot extends ParkingSpot {
     }
 }
 
+// Can also be shared by up to MOTORCYCLES_PER_SPOT motorcycles. sharedCount is the number of
+// motorcycles in the spot; 0 means the spot is not open for sharing.
 class OversizedSpot extends ParkingSpot {
+    static final int MOTORCYCLES_PER_SPOT = 3;
+    private final AtomicInteger sharedCount = new AtomicInteger();
+    // Set while the spot is in ParkingManager.sharedSpots, so it is queued at most once
+    private final AtomicBoolean queuedForSharing = new AtomicBoolean();
+    private final Set<Vehicle> motorcycles = ConcurrentHashMap.newKeySet();
+
     public OversizedSpot(int spotNumber) {
         super(true, VehicleSize.LARGE, spotNumber);
     }
+    public OversizedSpot(int spotNumber, int floor, int distanceToEntrance) {
+        super(true, VehicleSize.LARGE, spotNumber, floor, distanceToEntrance);
+    }
     @Override
     public void park(Vehicle vehicle) {
         super.setAvailable(false);
-        super.setVehicle(vehicle);
+        if (vehicle.getVehicleSize() == VehicleSize.SMALL) {
+            motorcycles.add(vehicle);
+        } else {
+            super.setVehicle(vehicle);
+        }
     }
 
     @Override
     public void unpark() {
+        motorcycles.clear();
         super.setAvailable(true);
         super.setVehicle(null);
     }
+
+    @Override
+    public void unpark(Vehicle vehicle) {
+        // A shared spot is only freed by the manager once the last motorcycle has left
+        if (vehicle.getVehicleSize() == VehicleSize.SMALL) {
+            motorcycles.remove(vehicle);
+        } else {
+            unpark();
+        }
+    }
+
+    public Set<Vehicle> getMotorcycles() {
+        return Collections.unmodifiableSet(motorcycles);
+    }
+
+    // Only called on a spot just taken from the free pool
+    void openShared() {
+        sharedCount.set(1);
+    }
+
+    boolean tryJoinShared() {
+        while (true) {
+            int count = sharedCount.get();
+            if (count == 0 || count >= MOTORCYCLES_PER_SPOT) return false;
+            if (sharedCount.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    // Returns the remaining count; at 0 the spot is closed and can go back to the free pool
+    int leaveShared() {
+        return sharedCount.decrementAndGet();
+    }
+
+    boolean hasSharedRoom() {
+        int count = sharedCount.get();
+        return count > 0 && count < MOTORCYCLES_PER_SPOT;
+    }
+
+    boolean markQueued() {
+        return queuedForSharing.compareAndSet(false, true);
+    }
+
+    void clearQueued() {
+        queuedForSharing.set(false);
+    }
 }
 
 
-// Singleton
+// Free spots of one size, shared by all gates. acquire() is the atomic claim: a spot is handed to
+// exactly one caller until it is released. peek() reports a candidate without taking it.
+interface FreeSpotPool {
+    ParkingSpot peek();
+    ParkingSpot acquire();
+    void release(ParkingSpot spot);
+    // Takes a specific spot, e.g. one recorded as occupied before a restart
+    boolean claim(ParkingSpot spot);
+    int freeCount();
+}
+
+// Lowest spot first. A summary word marks which bitmap words still have a free bit, so finding a
+// free spot is two find-first-set steps (up to 4096 spots per summary word) instead of a list scan.
+// Claims are a CAS on the bitmap word; the summary is only a hint and is repaired when stale.
+class BitsetSpotPool implements FreeSpotPool {
+    private final ParkingSpot[] spots;
+    private final Map<ParkingSpot, Integer> indexBySpot = new IdentityHashMap<>();
+    private final AtomicLongArray free;
+    private final AtomicLongArray summary;
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    public BitsetSpotPool(List<ParkingSpot> spots) {
+        this.spots = spots.toArray(new ParkingSpot[0]);
+        this.free = new AtomicLongArray((this.spots.length + 63) >>> 6);
+        this.summary = new AtomicLongArray((free.length() + 63) >>> 6);
+        for (int index = 0; index < this.spots.length; index++) {
+            indexBySpot.put(this.spots[index], index);
+            if (this.spots[index].isAvailable()) {
+                setFree(index);
+            }
+        }
+    }
+
+    @Override
+    public ParkingSpot peek() {
+        for (int s = 0; s < summary.length(); s++) {
+            long hint = summary.get(s);
+            while (hint != 0) {
+                long bits = free.get((s << 6) + Long.numberOfTrailingZeros(hint));
+                if (bits != 0) {
+                    return spots[(((s << 6) + Long.numberOfTrailingZeros(hint)) << 6) + Long.numberOfTrailingZeros(bits)];
+                }
+                hint &= hint - 1;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public ParkingSpot acquire() {
+        for (int s = 0; s < summary.length(); s++) {
+            long hint;
+            while ((hint = summary.get(s)) != 0) {
+                int word = (s << 6) + Long.numberOfTrailingZeros(hint);
+                long bits = free.get(word);
+                if (bits == 0) {
+                    clearSummary(word);
+                    continue;
+                }
+                long lowest = bits & -bits;
+                if (free.compareAndSet(word, bits, bits & ~lowest)) {
+                    if (bits == lowest) {
+                        clearSummary(word);
+                    }
+                    freeCount.decrementAndGet();
+                    return spots[(word << 6) + Long.numberOfTrailingZeros(lowest)];
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void release(ParkingSpot spot) {
+        Integer index = indexBySpot.get(spot);
+        if (index != null) {
+            setFree(index);
+        }
+    }
+
+    @Override
+    public boolean claim(ParkingSpot spot) {
+        Integer index = indexBySpot.get(spot);
+        if (index == null) return false;
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long bits = free.getAndUpdate(word, current -> current & ~bit);
+        if ((bits & bit) == 0) return false;
+        if (bits == bit) {
+            clearSummary(word);
+        }
+        freeCount.decrementAndGet();
+        return true;
+    }
+
+    @Override
+    public int freeCount() {
+        return freeCount.get();
+    }
+
+    private void setFree(int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        if ((free.getAndUpdate(word, bits -> bits | bit) & bit) != 0) return;
+        // Bit first, then summary: a reader that sees the summary bit will find the free bit
+        summary.getAndUpdate(word >>> 6, hint -> hint | (1L << word));
+        freeCount.incrementAndGet();
+    }
+
+    // A release may race with clearing the hint, so recheck the word and restore the hint if needed
+    private void clearSummary(int word) {
+        long mask = 1L << word;
+        summary.getAndUpdate(word >>> 6, hint -> hint & ~mask);
+        if (free.get(word) != 0) {
+            summary.getAndUpdate(word >>> 6, hint -> hint | mask);
+        }
+    }
+}
+
+// Closest spot to the entrance: lower floors first, then by distance within the floor. Each floor
+// is a concurrent skip-list ordered by distance, so claiming is a lock-free pollFirst.
+class NearestEntranceSpotPool implements FreeSpotPool {
+    private static final Comparator<ParkingSpot> BY_DISTANCE =
+            Comparator.comparingInt(ParkingSpot::getDistanceToEntrance).thenComparingInt(ParkingSpot::getSpotNumber);
+
+    private final TreeMap<Integer, ConcurrentSkipListSet<ParkingSpot>> freeByFloor = new TreeMap<>();
+    private final List<ConcurrentSkipListSet<ParkingSpot>> floors;
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    public NearestEntranceSpotPool(List<ParkingSpot> spots) {
+        for (ParkingSpot spot : spots) {
+            freeByFloor.computeIfAbsent(spot.getFloor(), floor -> new ConcurrentSkipListSet<>(BY_DISTANCE));
+        }
+        this.floors = new ArrayList<>(freeByFloor.values());
+        for (ParkingSpot spot : spots) {
+            if (spot.isAvailable()) {
+                release(spot);
+            }
+        }
+    }
+
+    @Override
+    public ParkingSpot peek() {
+        for (ConcurrentSkipListSet<ParkingSpot> floor : floors) {
+            Iterator<ParkingSpot> free = floor.iterator();
+            if (free.hasNext()) return free.next();
+        }
+        return null;
+    }
+
+    @Override
+    public ParkingSpot acquire() {
+        // Floors are few, so walking them in order is cheap next to the skip-list operations
+        for (ConcurrentSkipListSet<ParkingSpot> floor : floors) {
+            ParkingSpot spot = floor.pollFirst();
+            if (spot != null) {
+                freeCount.decrementAndGet();
+                return spot;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void release(ParkingSpot spot) {
+        if (freeByFloor.get(spot.getFloor()).add(spot)) {
+            freeCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean claim(ParkingSpot spot) {
+        ConcurrentSkipListSet<ParkingSpot> floor = freeByFloor.get(spot.getFloor());
+        if (floor == null || !floor.remove(spot)) return false;
+        freeCount.decrementAndGet();
+        return true;
+    }
+
+    @Override
+    public int freeCount() {
+        return freeCount.get();
+    }
+}
+
+// Occupied spots per floor and size. Gates only bump a LongAdder cell and set a dirty flag; summing
+// the cells is left to whoever reads a snapshot.
+class OccupancyCounters {
+    private static final int SIZES = VehicleSize.values().length;
+
+    private final int[] floors;
+    private final Map<Integer, Integer> floorIndex = new HashMap<>();
+    private final int[] spotCounts;
+    private final LongAdder[] occupied;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public OccupancyCounters(Map<VehicleSize, List<ParkingSpot>> spotMap) {
+        TreeSet<Integer> floorNumbers = new TreeSet<>();
+        for (List<ParkingSpot> spots : spotMap.values()) {
+            for (ParkingSpot spot : spots) {
+                floorNumbers.add(spot.getFloor());
+            }
+        }
+        this.floors = new int[floorNumbers.size()];
+        int index = 0;
+        for (int floor : floorNumbers) {
+            floors[index] = floor;
+            floorIndex.put(floor, index++);
+        }
+        this.spotCounts = new int[floors.length * SIZES];
+        this.occupied = new LongAdder[floors.length * SIZES];
+        for (int cell = 0; cell < occupied.length; cell++) {
+            occupied[cell] = new LongAdder();
+        }
+        for (Map.Entry<VehicleSize, List<ParkingSpot>> entry : spotMap.entrySet()) {
+            for (ParkingSpot spot : entry.getValue()) {
+                int cell = cell(spot.getFloor(), entry.getKey());
+                spotCounts[cell]++;
+                if (!spot.isAvailable()) {
+                    occupied[cell].increment();
+                }
+            }
+        }
+    }
+
+    public void occupy(ParkingSpot spot) {
+        occupied[cell(spot.getFloor(), spot.getVehicleSize())].increment();
+        markDirty();
+    }
+
+    public void vacate(ParkingSpot spot) {
+        occupied[cell(spot.getFloor(), spot.getVehicleSize())].decrement();
+        markDirty();
+    }
+
+    // Clears the flag; true if anything changed since the previous call
+    boolean takeDirty() {
+        return dirty.getAndSet(false);
+    }
+
+    public OccupancySnapshot snapshot() {
+        long[] counts = new long[occupied.length];
+        for (int cell = 0; cell < counts.length; cell++) {
+            counts[cell] = occupied[cell].sum();
+        }
+        return new OccupancySnapshot(System.currentTimeMillis(), floors, spotCounts, counts);
+    }
+
+    // Read before write so a busy lot doesn't keep invalidating the flag's cache line
+    private void markDirty() {
+        if (!dirty.get()) {
+            dirty.set(true);
+        }
+    }
+
+    private int cell(int floor, VehicleSize size) {
+        return floorIndex.get(floor) * SIZES + size.ordinal();
+    }
+}
+
+class OccupancySnapshot {
+    private static final int SIZES = VehicleSize.values().length;
+
+    private final long takenAt;
+    private final int[] floors;
+    private final int[] spotCounts;
+    private final long[] occupied;
+
+    public OccupancySnapshot(long takenAt, int[] floors, int[] spotCounts, long[] occupied) {
+        this.takenAt = takenAt;
+        this.floors = floors;
+        this.spotCounts = spotCounts;
+        this.occupied = occupied;
+    }
+
+    public long getTakenAt() {
+        return takenAt;
+    }
+    public int[] getFloors() {
+        return floors.clone();
+    }
+    public long getOccupied(int floor, VehicleSize size) {
+        int index = floorIndexOf(floor);
+        return index < 0 ? 0 : occupied[index * SIZES + size.ordinal()];
+    }
+    public long getFree(int floor, VehicleSize size) {
+        int index = floorIndexOf(floor);
+        return index < 0 ? 0 : spotCounts[index * SIZES + size.ordinal()] - occupied[index * SIZES + size.ordinal()];
+    }
+    public long getFree(VehicleSize size) {
+        long free = 0;
+        for (int index = 0; index < floors.length; index++) {
+            free += spotCounts[index * SIZES + size.ordinal()] - occupied[index * SIZES + size.ordinal()];
+        }
+        return free;
+    }
+    boolean sameCounts(OccupancySnapshot other) {
+        return other != null && Arrays.equals(occupied, other.occupied);
+    }
+
+    private int floorIndexOf(int floor) {
+        return Arrays.binarySearch(floors, floor);
+    }
+}
+
+interface OccupancyListener {
+    void onOccupancyChanged(OccupancySnapshot snapshot);
+}
+
+// Pushes occupancy to display boards and apps at most once per interval. Changes in between are
+// coalesced into the next snapshot, idle intervals publish nothing, and the gates never wait on it.
+class OccupancyPublisher {
+    private final OccupancyCounters counters;
+    private final long intervalMillis;
+    private final List<OccupancyListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "occupancy-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> task;
+    private OccupancySnapshot lastPublished;
+
+    public OccupancyPublisher(OccupancyCounters counters, long intervalMillis) {
+        this.counters = counters;
+        this.intervalMillis = intervalMillis;
+    }
+
+    // New subscribers get the current counts on the next tick, not only after the next change
+    public void subscribe(OccupancyListener listener) {
+        listeners.add(listener);
+        scheduler.execute(() -> deliver(listener, lastPublished != null ? lastPublished : counters.snapshot()));
+    }
+
+    public void unsubscribe(OccupancyListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void start() {
+        if (task == null) {
+            task = scheduler.scheduleAtFixedRate(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    private void publish() {
+        if (!counters.takeDirty()) return;
+        OccupancySnapshot snapshot = counters.snapshot();
+        // Park and leave within one interval cancel out
+        if (snapshot.sameCounts(lastPublished)) return;
+        lastPublished = snapshot;
+        for (OccupancyListener listener : listeners) {
+            deliver(listener, snapshot);
+        }
+    }
+
+    private void deliver(OccupancyListener listener, OccupancySnapshot snapshot) {
+        try {
+            listener.onOccupancyChanged(snapshot);
+        } catch (RuntimeException e) {
+            System.out.println("#ERROR: Occupancy listener failed: " + e.getMessage());
+        }
+    }
+}
+
+// Singleton, shared by every entry and exit gate
 class ParkingManager {
-    HashMap<Vehicle, ParkingSpot> vehicleToSpotMap;
+    ConcurrentHashMap<Vehicle, ParkingSpot> vehicleToSpotMap;
     HashMap<VehicleSize, List<ParkingSpot>> availableSpotMap;
+    EnumMap<VehicleSize, FreeSpotPool> freeSpots;
+    SpotAllocationStrategy allocationStrategy;
+    // Large spots shared by motorcycles that may still have room, each at most once; full or closed
+    // ones are dropped lazily
+    ConcurrentLinkedQueue<OversizedSpot> sharedSpots;
+    OccupancyCounters occupancy;
+    Map<Integer, ParkingSpot> spotsByNumber;
     public ParkingManager(HashMap<VehicleSize, List<ParkingSpot>> availableSpotMap) {
-        this.availableSpotMap = availableSpotMap;
-        this.vehicleToSpotMap = new HashMap<>();
+        this(availableSpotMap, false);
     }
 
-    public ParkingSpot findSpot(Vehicle vehicle){
-        VehicleSize vehicleSize = vehicle.getVehicleSize();
+    public ParkingManager(HashMap<VehicleSize, List<ParkingSpot>> availableSpotMap, boolean nearestToEntrance) {
+        this(availableSpotMap, nearestToEntrance, new FragmentationAwareAllocationStrategy(0.1));
+    }
 
-        for(ParkingSpot spot : availableSpotMap.get(vehicleSize)){
-            if(spot.isAvailable()){
-                return spot;
+    public ParkingManager(HashMap<VehicleSize, List<ParkingSpot>> availableSpotMap, boolean nearestToEntrance, SpotAllocationStrategy allocationStrategy) {
+        this.availableSpotMap = availableSpotMap;
+        this.vehicleToSpotMap = new ConcurrentHashMap<>();
+        this.freeSpots = new EnumMap<>(VehicleSize.class);
+        this.allocationStrategy = allocationStrategy;
+        this.sharedSpots = new ConcurrentLinkedQueue<>();
+        this.occupancy = new OccupancyCounters(availableSpotMap);
+        this.spotsByNumber = new HashMap<>();
+        for (VehicleSize size : VehicleSize.values()) {
+            List<ParkingSpot> spots = availableSpotMap.getOrDefault(size, Collections.emptyList());
+            freeSpots.put(size, nearestToEntrance ? new NearestEntranceSpotPool(spots) : new BitsetSpotPool(spots));
+            for (ParkingSpot spot : spots) {
+                spotsByNumber.put(spot.getSpotNumber(), spot);
             }
         }
+    }
 
+    // A free spot of the vehicle's size or larger, without claiming it
+    public ParkingSpot findSpot(Vehicle vehicle){
+        for (int size = vehicle.getVehicleSize().ordinal(); size < VehicleSize.values().length; size++) {
+            ParkingSpot spot = freeSpots.get(VehicleSize.values()[size]).peek();
+            if (spot != null) return spot;
+        }
         return null;
     }
 
+    // The vehicle's spot, claiming one if it has none yet
     public ParkingSpot parkVehicle(Vehicle vehicle){
-        ParkingSpot spot = findSpot(vehicle);
-        if(spot != null){
-            spot.park(vehicle);
-            vehicleToSpotMap.put(vehicle, spot);
-            return spot;
+        ParkingSpot spot = parkNewVehicle(vehicle);
+        return spot != null ? spot : vehicleToSpotMap.get(vehicle);
+    }
+
+    // Null when there is no room or the vehicle already holds a spot, so a spot returned here
+    // was claimed by this call
+    public ParkingSpot parkNewVehicle(Vehicle vehicle){
+        if(vehicleToSpotMap.containsKey(vehicle)) return null;
+        ParkingSpot spot = allocationStrategy.allocate(vehicle, this);
+        if(spot == null) return null;
+        if(vehicleToSpotMap.putIfAbsent(vehicle, spot) != null){
+            // Same vehicle came through two gates; keep the first assignment
+            releaseSpot(spot, vehicle);
+            return null;
         }
-        return null;
+        spot.park(vehicle);
+        return spot;
     }
 
     public void unparkVehicle(Vehicle vehicle){
-        ParkingSpot spot = vehicleToSpotMap.get(vehicle);
-        spot.unpark();
-        vehicleToSpotMap.remove(vehicle);
+        ParkingSpot spot = vehicleToSpotMap.remove(vehicle);
+        if(spot == null) return;
+        spot.unpark(vehicle);
+        releaseSpot(spot, vehicle);
+    }
+
+    // Puts a vehicle back into the spot it held before a restart; false if the spot is taken
+    public boolean restoreVehicle(Vehicle vehicle, ParkingSpot spot) {
+        boolean joined = spot instanceof OversizedSpot && vehicle.getVehicleSize() == VehicleSize.SMALL
+                && ((OversizedSpot) spot).tryJoinShared();
+        if (!joined) {
+            if (!freeSpots.get(spot.getVehicleSize()).claim(spot)) return false;
+            occupancy.occupy(spot);
+            if (spot instanceof OversizedSpot && vehicle.getVehicleSize() == VehicleSize.SMALL) {
+                ((OversizedSpot) spot).openShared();
+                queueShared((OversizedSpot) spot);
+            }
+        }
+        vehicleToSpotMap.put(vehicle, spot);
+        spot.park(vehicle);
+        return true;
+    }
+
+    public ParkingSpot getSpot(int spotNumber) {
+        return spotsByNumber.get(spotNumber);
+    }
+
+    public int getFreeSpotCount(VehicleSize vehicleSize) {
+        return freeSpots.get(vehicleSize).freeCount();
+    }
+
+    public int getSpotCount(VehicleSize vehicleSize) {
+        return availableSpotMap.getOrDefault(vehicleSize, Collections.emptyList()).size();
+    }
+
+    public OccupancyCounters getOccupancyCounters() {
+        return occupancy;
+    }
+
+    public OccupancySnapshot getOccupancy() {
+        return occupancy.snapshot();
+    }
+
+    // Claims a whole free spot of the given size
+    ParkingSpot acquireSpot(VehicleSize spotSize) {
+        ParkingSpot spot = freeSpots.get(spotSize).acquire();
+        if (spot != null) {
+            occupancy.occupy(spot);
+        }
+        return spot;
+    }
+
+    // Claims a place for a motorcycle in a large spot that other motorcycles already share
+    ParkingSpot joinSharedSpot() {
+        for (OversizedSpot spot; (spot = sharedSpots.peek()) != null; ) {
+            if (spot.tryJoinShared()) return spot;
+            if (sharedSpots.remove(spot)) {
+                spot.clearQueued();
+                // A motorcycle may have left between the failed join and clearing the flag; its
+                // release saw the flag still set and didn't queue the spot, so do it here
+                if (spot.hasSharedRoom()) queueShared(spot);
+            }
+        }
+        return null;
+    }
+
+    private void queueShared(OversizedSpot spot) {
+        if (spot.markQueued()) {
+            sharedSpots.add(spot);
+        }
+    }
+
+    // Claims a free large spot and opens it for sharing between motorcycles
+    ParkingSpot openSharedSpot() {
+        ParkingSpot spot = acquireSpot(VehicleSize.LARGE);
+        if (spot == null) return null;
+        if (!(spot instanceof OversizedSpot)) {
+            returnSpot(spot);
+            return null;
+        }
+        OversizedSpot shared = (OversizedSpot) spot;
+        shared.openShared();
+        queueShared(shared);
+        return shared;
+    }
+
+    private void releaseSpot(ParkingSpot spot, Vehicle vehicle) {
+        if (spot instanceof OversizedSpot && vehicle.getVehicleSize() == VehicleSize.SMALL) {
+            OversizedSpot shared = (OversizedSpot) spot;
+            int remaining = shared.leaveShared();
+            if (remaining > 0) {
+                queueShared(shared);
+                return;
+            }
+            shared.unpark();
+        }
+        returnSpot(spot);
+    }
+
+    private void returnSpot(ParkingSpot spot) {
+        occupancy.vacate(spot);
+        freeSpots.get(spot.getVehicleSize()).release(spot);
     }
 
 }
 
 
 class Ticket {
-    private int ticketNumber;
+    private long ticketNumber;
     private Vehicle vehicle;
     private ParkingSpot spot;
     private LocalDateTime entryTime;
     private LocalDateTime exitTime;
 
-    public Ticket(int ticketNumber, Vehicle vehicle, ParkingSpot spot, LocalDateTime entryTime) {
+    public Ticket(long ticketNumber, Vehicle vehicle, ParkingSpot spot, LocalDateTime entryTime) {
         this.ticketNumber = ticketNumber;
         this.vehicle = vehicle;
         this.spot = spot;
@@ -199,7 +824,7 @@ class Ticket {
         this.exitTime = null;
     }
 
-    public int getTicketNumber() {
+    public long getTicketNumber() {
         return ticketNumber;
     }
     public Vehicle getVehicle() {
@@ -229,11 +854,83 @@ class Ticket {
     }
 }
 
+// Picks and claims the spot for an arriving vehicle using the manager's acquire/join/open methods
+interface SpotAllocationStrategy {
+    ParkingSpot allocate(Vehicle vehicle, ParkingManager manager);
+}
+
+class ExactSizeAllocationStrategy implements SpotAllocationStrategy {
+    @Override
+    public ParkingSpot allocate(Vehicle vehicle, ParkingManager manager) {
+        return manager.acquireSpot(vehicle.getVehicleSize());
+    }
+}
+
+// Exact size first, then (for motorcycles) a large spot already shared by motorcycles, then the
+// cheapest larger size. A larger spot costs its wasted size plus how full that size already is, so
+// overflow spreads toward whichever size has room, and the last reservedLargeFraction of large
+// spots is kept for trucks. Only free counts are read, so the decision is a handful of loads.
+class FragmentationAwareAllocationStrategy implements SpotAllocationStrategy {
+    private static final long WASTE_COST = 1_000;
+    private static final long OCCUPANCY_COST = 2_000;
+    private static final VehicleSize[] SIZES = VehicleSize.values();
+
+    private final double reservedLargeFraction;
+
+    public FragmentationAwareAllocationStrategy(double reservedLargeFraction) {
+        this.reservedLargeFraction = reservedLargeFraction;
+    }
+
+    @Override
+    public ParkingSpot allocate(Vehicle vehicle, ParkingManager manager) {
+        VehicleSize size = vehicle.getVehicleSize();
+        ParkingSpot spot = manager.acquireSpot(size);
+        if (spot != null) return spot;
+        if (size == VehicleSize.SMALL) {
+            spot = manager.joinSharedSpot();
+            if (spot != null) return spot;
+        }
+        // Each larger size is tried at most once, cheapest first; a lost race falls through to the next
+        boolean[] tried = new boolean[SIZES.length];
+        for (int attempt = size.ordinal() + 1; attempt < SIZES.length; attempt++) {
+            VehicleSize best = null;
+            long bestCost = Long.MAX_VALUE;
+            for (int candidate = size.ordinal() + 1; candidate < SIZES.length; candidate++) {
+                if (tried[candidate]) continue;
+                long cost = overflowCost(size, SIZES[candidate], manager);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = SIZES[candidate];
+                }
+            }
+            if (best == null) return null;
+            tried[best.ordinal()] = true;
+            spot = best == VehicleSize.LARGE && size == VehicleSize.SMALL ? manager.openSharedSpot() : manager.acquireSpot(best);
+            if (spot != null) return spot;
+        }
+        return null;
+    }
+
+    private long overflowCost(VehicleSize vehicleSize, VehicleSize spotSize, ParkingManager manager) {
+        int total = manager.getSpotCount(spotSize);
+        int free = manager.getFreeSpotCount(spotSize);
+        if (free == 0) return Long.MAX_VALUE;
+        if (spotSize == VehicleSize.LARGE && free <= total * reservedLargeFraction) return Long.MAX_VALUE;
+        long waste = spotSize.ordinal() - vehicleSize.ordinal();
+        return waste * WASTE_COST + OCCUPANCY_COST * (total - free) / total;
+    }
+}
+
 interface FareStrategy {
     BigDecimal calculateFare(Ticket ticket, BigDecimal inputFare);
 }
 
-class BaseFareStrategy implements FareStrategy {
+// For strategies whose fare depends only on vehicle size and entry hour, and is a + b * minutes
+// for each of those. BatchFareCalculator relies on this to precompile them into a rate table.
+interface BandedFareStrategy extends FareStrategy {
+}
+
+class BaseFareStrategy implements BandedFareStrategy {
     private static final BigDecimal SMALL_RATE = new BigDecimal("1.0");
     private static final BigDecimal MEDIUM_RATE = new BigDecimal("2.0");
     private static final BigDecimal LARGE_RATE = new BigDecimal("3.0");
@@ -256,7 +953,7 @@ class BaseFareStrategy implements FareStrategy {
     }
 }
 
-class PeakHourMultiplierStrategy implements FareStrategy {
+class PeakHourMultiplierStrategy implements BandedFareStrategy {
     private static final BigDecimal MULTIPLIER = new BigDecimal("1.5");
     @Override
     public BigDecimal calculateFare(Ticket ticket, BigDecimal inputFare) {
@@ -288,24 +985,675 @@ class FareCalculator {
     }
 }
 
+// End-of-day settlement over many tickets. The strategies are evaluated once per vehicle size and
+// entry hour on the BigDecimal path and stored as fixed-point a + b * minutes, so pricing a ticket
+// is a table lookup and a multiply-add on longs. Fares come out as unscaled longs at getScale()
+// and equal calculateFare() exactly.
+class BatchFareCalculator {
+    static final int HOURS = 24;
+    private static final int CHUNK = 16_384;
+    private static final VehicleSize[] SIZES = VehicleSize.values();
+
+    private final int scale;
+    private final long[] intercept;
+    private final long[] perMinute;
+
+    private BatchFareCalculator(int scale, long[] intercept, long[] perMinute) {
+        this.scale = scale;
+        this.intercept = intercept;
+        this.perMinute = perMinute;
+    }
+
+    public static BatchFareCalculator compile(FareCalculator calculator) {
+        for (FareStrategy strategy : calculator.fareStrategies) {
+            if (!(strategy instanceof BandedFareStrategy)) {
+                throw new IllegalArgumentException("Fare strategy can't be precompiled: " + strategy.getClass().getSimpleName());
+            }
+        }
+        BigDecimal[] a = new BigDecimal[SIZES.length * HOURS];
+        BigDecimal[] b = new BigDecimal[SIZES.length * HOURS];
+        int scale = 0;
+        for (VehicleSize size : SIZES) {
+            Vehicle vehicle = new Vehicle("rate-table", size) {};
+            for (int hour = 0; hour < HOURS; hour++) {
+                LocalDateTime entry = LocalDateTime.of(2000, 1, 1, hour, 0);
+                BigDecimal f0 = fareAfter(calculator, vehicle, entry, 0);
+                BigDecimal f1 = fareAfter(calculator, vehicle, entry, 1);
+                BigDecimal f2 = fareAfter(calculator, vehicle, entry, 2);
+                int cell = size.ordinal() * HOURS + hour;
+                a[cell] = f0;
+                b[cell] = f1.subtract(f0);
+                if (f2.subtract(f1).compareTo(b[cell]) != 0) {
+                    throw new IllegalArgumentException("Fare is not linear in duration for " + size + " at hour " + hour);
+                }
+                scale = Math.max(scale, Math.max(a[cell].stripTrailingZeros().scale(), b[cell].stripTrailingZeros().scale()));
+            }
+        }
+        long[] intercept = new long[a.length];
+        long[] perMinute = new long[b.length];
+        for (int cell = 0; cell < a.length; cell++) {
+            intercept[cell] = a[cell].setScale(scale).unscaledValue().longValueExact();
+            perMinute[cell] = b[cell].setScale(scale).unscaledValue().longValueExact();
+        }
+        return new BatchFareCalculator(scale, intercept, perMinute);
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public BigDecimal toFare(long unscaled) {
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    // Tickets without an exit time are priced as leaving at settledAt; tickets are not modified
+    public long[] calculateFares(Ticket[] tickets, LocalDateTime settledAt) {
+        long[] fares = new long[tickets.length];
+        ForkJoinPool.commonPool().invoke(new FareBatchTask(tickets, settledAt, fares, 0, tickets.length));
+        return fares;
+    }
+
+    long calculateFare(Ticket ticket, LocalDateTime settledAt) {
+        LocalDateTime entry = ticket.getEntryTime();
+        LocalDateTime exit = ticket.getExitTime() != null ? ticket.getExitTime() : settledAt;
+        int cell = ticket.getVehicle().getVehicleSize().ordinal() * HOURS + entry.getHour();
+        return Math.addExact(intercept[cell], Math.multiplyExact(perMinute[cell], minutesBetween(entry, exit)));
+    }
+
+    // Same truncation as Duration.between(entry, exit).toMinutes()
+    static long minutesBetween(LocalDateTime entry, LocalDateTime exit) {
+        long seconds = exit.toEpochSecond(ZoneOffset.UTC) - entry.toEpochSecond(ZoneOffset.UTC);
+        if (exit.getNano() < entry.getNano()) {
+            seconds--;
+        }
+        return seconds / 60;
+    }
+
+    private static BigDecimal fareAfter(FareCalculator calculator, Vehicle vehicle, LocalDateTime entry, int minutes) {
+        Ticket ticket = new Ticket(0, vehicle, null, entry);
+        ticket.setExitTime(entry.plusMinutes(minutes));
+        return calculator.calculateFare(ticket);
+    }
+
+    private class FareBatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Ticket[] tickets;
+        private final LocalDateTime settledAt;
+        private final long[] fares;
+        private final int from;
+        private final int to;
+
+        FareBatchTask(Ticket[] tickets, LocalDateTime settledAt, long[] fares, int from, int to) {
+            this.tickets = tickets;
+            this.settledAt = settledAt;
+            this.fares = fares;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                for (int i = from; i < to; i++) {
+                    fares[i] = calculateFare(tickets[i], settledAt);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new FareBatchTask(tickets, settledAt, fares, from, middle),
+                    new FareBatchTask(tickets, settledAt, fares, middle, to));
+        }
+    }
+}
+
+
+// Snowflake-style ids: 41 bits of milliseconds since EPOCH_MILLIS, 10 bits of node id and a 12-bit
+// sequence. Timestamp and sequence advance together in one AtomicLong, so ids from a node are
+// strictly increasing even if the clock steps back or more than 4096 are issued in a millisecond
+// (the sequence then carries into the next millisecond).
+class TicketIdGenerator {
+    static final long EPOCH_MILLIS = 1_704_067_200_000L; // 2024-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+
+    private final long node;
+    private final AtomicLong lastState = new AtomicLong();
+
+    public TicketIdGenerator(int node) {
+        if (node < 0 || node >= (1 << NODE_BITS)) {
+            throw new IllegalArgumentException("Node id must be in [0, " + (1 << NODE_BITS) + "): " + node);
+        }
+        this.node = node;
+    }
+
+    public long nextId() {
+        long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+        long state = lastState.updateAndGet(last -> Math.max(now, last + 1));
+        long timestamp = state >>> SEQUENCE_BITS;
+        long sequence = state & ((1L << SEQUENCE_BITS) - 1);
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+    }
+
+    // After a restart, never reissue an id at or below one already handed out
+    public void advancePast(long id) {
+        if ((id >>> SEQUENCE_BITS & ((1L << NODE_BITS) - 1)) != node) return;
+        long state = ((id >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS) | (id & ((1L << SEQUENCE_BITS) - 1));
+        lastState.accumulateAndGet(state, Math::max);
+    }
+}
+
+enum TicketEventType {
+    ENTRY,
+    EXIT
+}
+
+class TicketEvent {
+    final TicketEventType type;
+    final long ticketId;
+    final String licensePlate;
+    final VehicleSize vehicleSize;
+    final int spotNumber;
+    final LocalDateTime time;
+
+    public TicketEvent(TicketEventType type, long ticketId, String licensePlate, VehicleSize vehicleSize, int spotNumber, LocalDateTime time) {
+        this.type = type;
+        this.ticketId = ticketId;
+        this.licensePlate = licensePlate;
+        this.vehicleSize = vehicleSize;
+        this.spotNumber = spotNumber;
+        this.time = time;
+    }
+
+    static TicketEvent entry(Ticket ticket) {
+        Vehicle vehicle = ticket.getVehicle();
+        return new TicketEvent(TicketEventType.ENTRY, ticket.getTicketNumber(), vehicle.getLicensePlate(),
+                vehicle.getVehicleSize(), ticket.getSpot().getSpotNumber(), ticket.getEntryTime());
+    }
+
+    static TicketEvent exit(Ticket ticket) {
+        return new TicketEvent(TicketEventType.EXIT, ticket.getTicketNumber(), null, null, -1, ticket.getExitTime());
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeLong(ticketId);
+        out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(time.getNano());
+        if (type == TicketEventType.ENTRY) {
+            out.writeUTF(licensePlate);
+            out.writeByte(vehicleSize.ordinal());
+            out.writeInt(spotNumber);
+        }
+    }
+
+    static TicketEvent readFrom(DataInputStream in) throws IOException {
+        TicketEventType type = TicketEventType.values()[in.readUnsignedByte()];
+        long ticketId = in.readLong();
+        LocalDateTime time = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        if (type == TicketEventType.EXIT) {
+            return new TicketEvent(type, ticketId, null, null, -1, time);
+        }
+        String licensePlate = in.readUTF();
+        VehicleSize vehicleSize = VehicleSize.values()[in.readUnsignedByte()];
+        return new TicketEvent(type, ticketId, licensePlate, vehicleSize, in.readInt(), time);
+    }
+}
+
+// Append-only ticket log with group commit: gates enqueue an event and wait for the fsync of the
+// batch it landed in. Records are length, payload, CRC32. On startup the log is replayed into the
+// open-ticket set and rewritten with only the open entries, so it never grows past one day's traffic.
+class TicketLog {
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_RECORD = 1 << 16;
+
+    private final Path path;
+    private final BlockingQueue<PendingTicketEvent> queue = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+    // End of the last fully written batch, and whether a failed write may have left bytes after it
+    private long validLength;
+    private boolean tornTail;
+    private Thread writer;
+    // Guarded by the queue's monitor together with the enqueue, so nothing is queued behind POISON
+    private boolean closed;
+
+    public TicketLog(Path path) {
+        this.path = path;
+    }
+
+    // Returns the ENTRY events of tickets without an EXIT, in log order, and starts the writer
+    public List<TicketEvent> recover() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Map<Long, TicketEvent> open = new LinkedHashMap<>();
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+                CRC32 crc = new CRC32();
+                // A torn or corrupt record is a crash mid-write; everything after it is dropped
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length <= 0 || length > MAX_RECORD) break;
+                    byte[] record = new byte[length];
+                    try {
+                        in.readFully(record);
+                        crc.reset();
+                        crc.update(record);
+                        if ((int) crc.getValue() != in.readInt()) break;
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    TicketEvent event = TicketEvent.readFrom(new DataInputStream(new ByteArrayInputStream(record)));
+                    if (event.type == TicketEventType.ENTRY) {
+                        open.put(event.ticketId, event);
+                    } else {
+                        open.remove(event.ticketId);
+                    }
+                }
+            }
+        }
+        List<TicketEvent> openTickets = new ArrayList<>(open.values());
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        // Synced before it replaces the log and the rename synced before any new write, so a
+        // power loss leaves either the old log or the complete compacted one
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            validLength = write(out, openTickets);
+            out.force(true);
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        writer = new Thread(this::writeLoop, "ticket-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return openTickets;
+    }
+
+    public CompletableFuture<Void> append(TicketEvent event) {
+        PendingTicketEvent pending = new PendingTicketEvent(event);
+        synchronized (queue) {
+            if (!closed) {
+                queue.add(pending);
+                return pending.done;
+            }
+        }
+        pending.done.completeExceptionally(new IllegalStateException("Ticket log is closed"));
+        return pending.done;
+    }
+
+    public void close() throws InterruptedException, IOException {
+        synchronized (queue) {
+            if (closed) return;
+            closed = true;
+            queue.add(PendingTicketEvent.POISON);
+        }
+        writer.join();
+        channel.close();
+    }
+
+    private void writeLoop() {
+        List<PendingTicketEvent> batch = new ArrayList<>();
+        List<TicketEvent> events = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean stop = batch.remove(PendingTicketEvent.POISON);
+                for (PendingTicketEvent pending : batch) {
+                    events.add(pending.event);
+                }
+                if (!events.isEmpty()) {
+                    if (tornTail) discardTornTail();
+                    validLength += write(channel, events);
+                }
+                for (PendingTicketEvent pending : batch) {
+                    pending.done.complete(null);
+                }
+                if (stop) return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                for (PendingTicketEvent pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+                tornTail = true;
+                try {
+                    discardTornTail();
+                } catch (IOException retryLater) {
+                    // tried again before the next batch, which fails instead of writing after the tear
+                }
+            }
+            batch.clear();
+            events.clear();
+        }
+    }
+
+    // A failed write can leave part of a record behind, and recovery drops everything after the
+    // first bad record. Cut the log back to the last good batch before writing anything else.
+    private void discardTornTail() throws IOException {
+        if (!channel.isOpen()) {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        channel.truncate(validLength);
+        channel.force(false);
+        tornTail = false;
+    }
+
+    // Returns the number of bytes written
+    private static long write(FileChannel channel, List<TicketEvent> events) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(events.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        CRC32 crc = new CRC32();
+        for (TicketEvent event : events) {
+            record.reset();
+            event.writeTo(recordOut);
+            crc.reset();
+            crc.update(record.toByteArray());
+            out.writeInt(record.size());
+            record.writeTo(out);
+            out.writeInt((int) crc.getValue());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        return bytes.size();
+    }
+
+    private static class PendingTicketEvent {
+        static final PendingTicketEvent POISON = new PendingTicketEvent(null);
+        final TicketEvent event;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingTicketEvent(TicketEvent event) {
+            this.event = event;
+        }
+    }
+}
+
+// Issues and closes tickets. Open tickets are indexed by id and by license plate for O(1) exits;
+// with a TicketLog every entry and exit is durable before the gate gets its answer.
+class TicketService {
+    private final TicketIdGenerator idGenerator;
+    private final TicketLog log;
+    private final Map<Long, Ticket> ticketsById = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> ticketsByPlate = new ConcurrentHashMap<>();
+
+    public TicketService(TicketIdGenerator idGenerator) {
+        this(idGenerator, null);
+    }
+
+    public TicketService(TicketIdGenerator idGenerator, TicketLog log) {
+        this.idGenerator = idGenerator;
+        this.log = log;
+    }
+
+    // Call before opening the gates: replays the log and puts every open ticket's vehicle back in its spot
+    public List<Ticket> recover(ParkingManager parkingManager) throws IOException {
+        if (log == null) return Collections.emptyList();
+        List<Ticket> restored = new ArrayList<>();
+        for (TicketEvent event : log.recover()) {
+            idGenerator.advancePast(event.ticketId);
+            ParkingSpot spot = parkingManager.getSpot(event.spotNumber);
+            Vehicle vehicle = vehicleOf(event.licensePlate, event.vehicleSize);
+            if (spot == null || !parkingManager.restoreVehicle(vehicle, spot)) {
+                System.out.println("#ERROR: Can't restore ticket " + event.ticketId + " to spot " + event.spotNumber);
+                continue;
+            }
+            Ticket ticket = new Ticket(event.ticketId, vehicle, spot, event.time);
+            ticketsById.put(ticket.getTicketNumber(), ticket);
+            ticketsByPlate.put(vehicle.getLicensePlate(), ticket);
+            restored.add(ticket);
+        }
+        return restored;
+    }
+
+    public Ticket issue(Vehicle vehicle, ParkingSpot spot, LocalDateTime entryTime) {
+        Ticket ticket = new Ticket(idGenerator.nextId(), vehicle, spot, entryTime);
+        if (log != null) {
+            log.append(TicketEvent.entry(ticket)).join();
+        }
+        ticketsById.put(ticket.getTicketNumber(), ticket);
+        ticketsByPlate.put(vehicle.getLicensePlate(), ticket);
+        return ticket;
+    }
+
+    // Returns false if the ticket was already closed
+    public boolean close(Ticket ticket, LocalDateTime exitTime) {
+        if (!ticketsById.remove(ticket.getTicketNumber(), ticket)) return false;
+        ticketsByPlate.remove(ticket.getVehicle().getLicensePlate(), ticket);
+        ticket.setExitTime(exitTime);
+        if (log != null) {
+            try {
+                log.append(TicketEvent.exit(ticket)).join();
+            } catch (RuntimeException e) {
+                // Still open as far as the log knows, so it stays open here too
+                ticket.setExitTime(null);
+                ticketsById.put(ticket.getTicketNumber(), ticket);
+                ticketsByPlate.put(ticket.getVehicle().getLicensePlate(), ticket);
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    public Ticket findById(long ticketId) {
+        return ticketsById.get(ticketId);
+    }
+
+    public Ticket findByPlate(String licensePlate) {
+        return ticketsByPlate.get(licensePlate);
+    }
+
+    public Collection<Ticket> getOpenTickets() {
+        return Collections.unmodifiableCollection(ticketsById.values());
+    }
+
+    private static Vehicle vehicleOf(String licensePlate, VehicleSize size) {
+        switch (size) {
+            case SMALL:
+                return new Motorcycle(licensePlate);
+            case MEDIUM:
+                return new Car(licensePlate);
+            default:
+                return new Truck(licensePlate);
+        }
+    }
+}
+
 
 public class ParkingLot {
     ParkingManager parkingManager;
     FareCalculator fareCalculator;
+    TicketService ticketService;
     public ParkingLot(ParkingManager parkingManager, FareCalculator fareCalculator) {
+        this(parkingManager, fareCalculator, new TicketService(new TicketIdGenerator(0)));
+    }
+
+    public ParkingLot(ParkingManager parkingManager, FareCalculator fareCalculator, TicketService ticketService) {
         this.parkingManager = parkingManager;
         this.fareCalculator = fareCalculator;
+        this.ticketService = ticketService;
+    }
+
+    public List<Ticket> recover() throws IOException {
+        return ticketService.recover(parkingManager);
     }
 
+    // A vehicle that is already inside gets its open ticket back instead of a second one
     public Ticket enterVehicle(Vehicle vehicle) {
-        ParkingSpot spot = parkingManager.parkVehicle(vehicle);
-        if(spot == null) return null;
-        return new Ticket(123, vehicle, spot, LocalDateTime.now());
+        Ticket open = ticketService.findByPlate(vehicle.getLicensePlate());
+        if(open != null) return open;
+        ParkingSpot spot = parkingManager.parkNewVehicle(vehicle);
+        // Full, or another gate parked this vehicle first and is still issuing its ticket
+        if(spot == null) return ticketService.findByPlate(vehicle.getLicensePlate());
+        try {
+            return ticketService.issue(vehicle, spot, LocalDateTime.now());
+        } catch (RuntimeException e) {
+            // No durable ticket, so the spot this call claimed must not stay taken
+            parkingManager.unparkVehicle(vehicle);
+            throw e;
+        }
     }
 
-    public void leaveVehicle(Ticket ticket) {
-        Vehicle vehicle = ticket.getVehicle();
-        parkingManager.unparkVehicle(vehicle);
-        BigDecimal fare = fareCalculator.calculateFare(ticket);
+    // Returns null if the ticket was already closed
+    public BigDecimal leaveVehicle(Ticket ticket) {
+        if(!ticketService.close(ticket, LocalDateTime.now())) return null;
+        parkingManager.unparkVehicle(ticket.getVehicle());
+        return fareCalculator.calculateFare(ticket);
+    }
+
+    public BigDecimal leaveVehicle(String licensePlate) {
+        Ticket ticket = ticketService.findByPlate(licensePlate);
+        return ticket == null ? null : leaveVehicle(ticket);
+    }
+}
+
+// 32 gates park and unpark concurrently. Every spot holds MOTORCYCLES_PER_SPOT units: a vehicle
+// alone in a spot takes all of them, a motorcycle sharing a large spot takes one. Going over is
+// reported as a double allocation.
+class ParkingGateSimulation {
+    public static void main(String[] args) throws InterruptedException {
+        int gates = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int operationsPerGate = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int spotsPerSize = 2_000;
+
+        HashMap<VehicleSize, List<ParkingSpot>> spotMap = new HashMap<>();
+        List<ParkingSpot> allSpots = new ArrayList<>();
+        for (VehicleSize size : VehicleSize.values()) {
+            List<ParkingSpot> spots = new ArrayList<>();
+            for (int i = 0; i < spotsPerSize; i++) {
+                int number = allSpots.size();
+                ParkingSpot spot = size == VehicleSize.SMALL ? new CompactSpot(number, i / 500, i % 500)
+                        : size == VehicleSize.MEDIUM ? new RegulartSpot(number, i / 500, i % 500)
+                        : new OversizedSpot(number, i / 500, i % 500);
+                spots.add(spot);
+                allSpots.add(spot);
+            }
+            spotMap.put(size, spots);
+        }
+
+        for (boolean nearestToEntrance : new boolean[]{false, true}) {
+            for (ParkingSpot spot : allSpots) {
+                spot.unpark();
+            }
+            ParkingManager manager = new ParkingManager(spotMap, nearestToEntrance);
+            AtomicIntegerArray units = new AtomicIntegerArray(allSpots.size());
+            AtomicLong parked = new AtomicLong();
+            AtomicLong full = new AtomicLong();
+            AtomicLong doubleAllocated = new AtomicLong();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int gate = 0; gate < gates; gate++) {
+                int gateId = gate;
+                Thread thread = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    ArrayDeque<Vehicle> inside = new ArrayDeque<>();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int op = 0; op < operationsPerGate; op++) {
+                        if (inside.isEmpty() || random.nextInt(100) < 55) {
+                            String plate = gateId + "-" + op;
+                            int kind = random.nextInt(3);
+                            Vehicle vehicle = kind == 0 ? new Motorcycle(plate) : kind == 1 ? new Car(plate) : new Truck(plate);
+                            ParkingSpot spot = manager.parkVehicle(vehicle);
+                            if (spot == null) {
+                                full.incrementAndGet();
+                                continue;
+                            }
+                            if (units.addAndGet(spot.getSpotNumber(), unitsOf(vehicle, spot)) > OversizedSpot.MOTORCYCLES_PER_SPOT) {
+                                doubleAllocated.incrementAndGet();
+                            }
+                            parked.incrementAndGet();
+                            inside.add(vehicle);
+                        } else {
+                            Vehicle vehicle = inside.poll();
+                            ParkingSpot spot = manager.vehicleToSpotMap.get(vehicle);
+                            // Cleared before the spot goes back to the pool
+                            units.addAndGet(spot.getSpotNumber(), -unitsOf(vehicle, spot));
+                            manager.unparkVehicle(vehicle);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsedMs = (System.nanoTime() - begin) / 1_000_000;
+
+            Set<ParkingSpot> occupiedSpots = Collections.newSetFromMap(new IdentityHashMap<>());
+            occupiedSpots.addAll(manager.vehicleToSpotMap.values());
+            int occupied = occupiedSpots.size();
+            int free = 0;
+            long countedFree = 0;
+            OccupancySnapshot occupancy = manager.getOccupancy();
+            for (VehicleSize size : VehicleSize.values()) {
+                free += manager.getFreeSpotCount(size);
+                countedFree += occupancy.getFree(size);
+            }
+            System.out.println((nearestToEntrance ? "nearest-entrance" : "bitset") + ": " + gates + " gates, "
+                    + parked.get() + " parks (" + full.get() + " turned away) in " + elapsedMs + "ms, double allocated: "
+                    + doubleAllocated.get() + ", occupied + free = " + (occupied + free) + " of " + allSpots.size()
+                    + ", free: " + free + " (occupancy counters: " + countedFree + ")");
+        }
+    }
+
+    private static int unitsOf(Vehicle vehicle, ParkingSpot spot) {
+        boolean shared = spot instanceof OversizedSpot && vehicle.getVehicleSize() == VehicleSize.SMALL;
+        return shared ? 1 : OversizedSpot.MOTORCYCLES_PER_SPOT;
+    }
+}
+
+// Property check: random tickets priced by the batch pipeline must match FareCalculator exactly
+class BatchFareCheck {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 42);
+        FareCalculator calculator = new FareCalculator(List.of(new BaseFareStrategy(), new PeakHourMultiplierStrategy()));
+        BatchFareCalculator batch = BatchFareCalculator.compile(calculator);
+
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+        Ticket[] tickets = new Ticket[count];
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(3);
+            Vehicle vehicle = kind == 0 ? new Motorcycle("M" + i) : kind == 1 ? new Car("C" + i) : new Truck("T" + i);
+            LocalDateTime entry = start.plusSeconds(random.nextInt(365 * 24 * 3600)).plusNanos(random.nextInt(1_000_000_000));
+            tickets[i] = new Ticket(i, vehicle, null, entry);
+            tickets[i].setExitTime(entry.plusSeconds(random.nextInt(3 * 24 * 3600)).plusNanos(random.nextInt(1_000_000_000)));
+        }
+
+        long begin = System.nanoTime();
+        long[] fares = batch.calculateFares(tickets, LocalDateTime.now());
+        long batchMs = (System.nanoTime() - begin) / 1_000_000;
+
+        begin = System.nanoTime();
+        int mismatches = 0;
+        for (int i = 0; i < count; i++) {
+            BigDecimal expected = calculator.calculateFare(tickets[i]);
+            if (batch.toFare(fares[i]).compareTo(expected) != 0) {
+                if (mismatches++ < 5) {
+                    System.out.println("#ERROR: Ticket " + i + " expected " + expected + " got " + batch.toFare(fares[i]));
+                }
+            }
+        }
+        long bigDecimalMs = (System.nanoTime() - begin) / 1_000_000;
+        System.out.println(count + " tickets: batch " + batchMs + "ms, BigDecimal " + bigDecimalMs + "ms, mismatches: " + mismatches);
     }
 }
@@ -1,5 +1,33 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.* ;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 enum FileAttribute {
     IS_DIRECTORY,
@@ -14,13 +42,20 @@ class File{
     private int size;
     private String owner;
     Set<File> entries;
+    // Every index built over a tree containing this file; each one hears about new entries
+    volatile List<FileAttributeIndex> indexes = List.of();
 
     public File(boolean isDirectory, String filename, int size, String owner){
+        this(isDirectory, filename, size, owner, new HashSet<>());
+    }
+
+    // For subclasses that keep their entries elsewhere and override getEntries/addEntry
+    File(boolean isDirectory, String filename, int size, String owner, Set<File> entries){
         this.isDirectory = isDirectory;
         this.filename = filename;
         this.size = size;
         this.owner = owner;
-        this.entries = new HashSet<>();
+        this.entries = entries;
     }
 
     public boolean isDirectory() {
@@ -39,14 +74,18 @@ class File{
         return entries;
     }
     public void addEntry(File file){
-        entries.add(file);
+        if(entries.add(file)){
+            for(FileAttributeIndex index : indexes){
+                index.addSubtree(file);
+            }
+        }
     }
     public Object extractAttribute(FileAttribute fileAttribute){
         return switch (fileAttribute) {
-            case IS_DIRECTORY -> isDirectory;
-            case FILENAME -> filename;
-            case SIZE -> size;
-            case OWNER -> owner;
+            case IS_DIRECTORY -> isDirectory();
+            case FILENAME -> getFilename();
+            case SIZE -> getSize();
+            case OWNER -> getOwner();
             default -> null;
         };
     }
@@ -87,7 +126,10 @@ class AndPredicate implements CompositePredicate {
 
     @Override
     public boolean isMatch(File file) {
-        return operands.stream().allMatch(p -> p.isMatch(file));
+        for (Predicate operand : operands) {
+            if (!operand.isMatch(file)) return false;
+        }
+        return true;
     }
 }
 
@@ -100,7 +142,10 @@ class OrPredicate implements CompositePredicate {
 
     @Override
     public boolean isMatch(File file) {
-        return operands.stream().anyMatch(p -> p.isMatch(file));
+        for (Predicate operand : operands) {
+            if (operand.isMatch(file)) return true;
+        }
+        return false;
     }
 }
 
@@ -140,10 +185,264 @@ class LessThanOperator<T extends Number> implements ComparisonOperator<T> {
     }
 }
 class RegexOperator<T extends String> implements ComparisonOperator<T> {
+    private static final Map<String, Pattern> patterns = new ConcurrentHashMap<>();
+
+    static Pattern compile(String regex) {
+        return patterns.computeIfAbsent(regex, Pattern::compile);
+    }
+
     @Override
     public boolean operate(T a, T b) {
-        Pattern p = Pattern.compile(b);
-        return p.matcher(a).matches();
+        return compile(b).matcher(a).matches();
+    }
+}
+
+// A predicate tree lowered into typed, allocation free nodes. Cost is a relative evaluation
+// cost and selectivity the estimated fraction of files that match; both drive operand ordering.
+interface CompiledPredicate extends Predicate {
+    double cost();
+    double selectivity();
+}
+
+class SizeComparisonPredicate implements CompiledPredicate {
+    enum Kind { EQUAL, GREATER, LESS }
+    final Kind kind;
+    final int value;
+
+    public SizeComparisonPredicate(Kind kind, int value) {
+        this.kind = kind;
+        this.value = value;
+    }
+    public boolean isMatch(File file) {
+        int size = file.getSize();
+        return switch (kind) {
+            case EQUAL -> size == value;
+            case GREATER -> size > value;
+            case LESS -> size < value;
+        };
+    }
+    public double cost() {
+        return 1;
+    }
+    public double selectivity() {
+        return kind == Kind.EQUAL ? 0.05 : 0.5;
+    }
+}
+
+class DirectoryPredicate implements CompiledPredicate {
+    private final boolean isDirectory;
+    public DirectoryPredicate(boolean isDirectory) {
+        this.isDirectory = isDirectory;
+    }
+    public boolean isMatch(File file) {
+        return file.isDirectory() == isDirectory;
+    }
+    public double cost() {
+        return 1;
+    }
+    public double selectivity() {
+        return isDirectory ? 0.1 : 0.9;
+    }
+}
+
+class StringEqualsPredicate implements CompiledPredicate {
+    final FileAttribute attribute;
+    final String value;
+    public StringEqualsPredicate(FileAttribute attribute, String value) {
+        this.attribute = attribute;
+        this.value = value;
+    }
+    public boolean isMatch(File file) {
+        return value.equals(attribute == FileAttribute.OWNER ? file.getOwner() : file.getFilename());
+    }
+    public double cost() {
+        return 2;
+    }
+    public double selectivity() {
+        return attribute == FileAttribute.OWNER ? 0.1 : 0.01;
+    }
+}
+
+class RegexPredicate implements CompiledPredicate {
+    final FileAttribute attribute;
+    final String regex;
+    private final ThreadLocal<Matcher> matchers;
+
+    public RegexPredicate(FileAttribute attribute, String regex) {
+        this.attribute = attribute;
+        this.regex = regex;
+        Pattern pattern = RegexOperator.compile(regex);
+        this.matchers = ThreadLocal.withInitial(() -> pattern.matcher(""));
+    }
+    public boolean isMatch(File file) {
+        String value = attribute == FileAttribute.OWNER ? file.getOwner() : file.getFilename();
+        // A missing owner or name never matches, as with the uncompiled predicate
+        return value != null && matchers.get().reset(value).matches();
+    }
+    public double cost() {
+        return 20;
+    }
+    public double selectivity() {
+        return 0.2;
+    }
+}
+
+class CompiledAndPredicate implements CompiledPredicate {
+    final CompiledPredicate[] operands;
+
+    // Cheapest and most selective first: rank by cost / (1 - selectivity)
+    public CompiledAndPredicate(List<CompiledPredicate> operands) {
+        this.operands = operands.stream()
+                .sorted(Comparator.comparingDouble(p -> p.cost() / Math.max(1e-6, 1 - p.selectivity())))
+                .toArray(CompiledPredicate[]::new);
+    }
+    public boolean isMatch(File file) {
+        for (CompiledPredicate operand : operands) {
+            if (!operand.isMatch(file)) return false;
+        }
+        return true;
+    }
+    public double cost() {
+        double cost = 0;
+        double reached = 1;
+        for (CompiledPredicate operand : operands) {
+            cost += reached * operand.cost();
+            reached *= operand.selectivity();
+        }
+        return cost;
+    }
+    public double selectivity() {
+        double selectivity = 1;
+        for (CompiledPredicate operand : operands) {
+            selectivity *= operand.selectivity();
+        }
+        return selectivity;
+    }
+}
+
+class CompiledOrPredicate implements CompiledPredicate {
+    final CompiledPredicate[] operands;
+
+    // Cheapest and most likely to match first: rank by cost / selectivity
+    public CompiledOrPredicate(List<CompiledPredicate> operands) {
+        this.operands = operands.stream()
+                .sorted(Comparator.comparingDouble(p -> p.cost() / Math.max(1e-6, p.selectivity())))
+                .toArray(CompiledPredicate[]::new);
+    }
+    public boolean isMatch(File file) {
+        for (CompiledPredicate operand : operands) {
+            if (operand.isMatch(file)) return true;
+        }
+        return false;
+    }
+    public double cost() {
+        double cost = 0;
+        double reached = 1;
+        for (CompiledPredicate operand : operands) {
+            cost += reached * operand.cost();
+            reached *= 1 - operand.selectivity();
+        }
+        return cost;
+    }
+    public double selectivity() {
+        double missed = 1;
+        for (CompiledPredicate operand : operands) {
+            missed *= 1 - operand.selectivity();
+        }
+        return 1 - missed;
+    }
+}
+
+class CompiledNotPredicate implements CompiledPredicate {
+    private final CompiledPredicate operand;
+    public CompiledNotPredicate(CompiledPredicate operand) {
+        this.operand = operand;
+    }
+    public boolean isMatch(File file) {
+        return !operand.isMatch(file);
+    }
+    public double cost() {
+        return operand.cost();
+    }
+    public double selectivity() {
+        return 1 - operand.selectivity();
+    }
+}
+
+// Wraps predicates the compiler does not know about, keeping their original semantics
+class InterpretedPredicate implements CompiledPredicate {
+    private final Predicate predicate;
+    public InterpretedPredicate(Predicate predicate) {
+        this.predicate = predicate;
+    }
+    public boolean isMatch(File file) {
+        return predicate.isMatch(file);
+    }
+    public double cost() {
+        return 50;
+    }
+    public double selectivity() {
+        return 0.5;
+    }
+}
+
+class PredicateCompiler {
+    public static CompiledPredicate compile(Predicate predicate) {
+        if (predicate instanceof CompiledPredicate compiled) {
+            return compiled;
+        }
+        if (predicate instanceof AndPredicate and) {
+            return new CompiledAndPredicate(compileAll(and.operands));
+        }
+        if (predicate instanceof OrPredicate or) {
+            return new CompiledOrPredicate(compileAll(or.operands));
+        }
+        if (predicate instanceof NotPredicate not) {
+            return new CompiledNotPredicate(compile(not.operand));
+        }
+        if (predicate instanceof SimplePredicate<?> simple) {
+            return compileSimple(simple);
+        }
+        return new InterpretedPredicate(predicate);
+    }
+
+    private static List<CompiledPredicate> compileAll(List<Predicate> predicates) {
+        List<CompiledPredicate> compiled = new ArrayList<>();
+        for (Predicate predicate : predicates) {
+            compiled.add(compile(predicate));
+        }
+        return compiled;
+    }
+
+    // Only exact type/operator combinations are specialized, everything else keeps SimplePredicate semantics
+    private static CompiledPredicate compileSimple(SimplePredicate<?> simple) {
+        FileAttribute attribute = simple.fileAttribute;
+        Object expected = simple.expectedValue;
+        ComparisonOperator<?> operator = simple.operator;
+        Class<?> operatorClass = operator.getClass();
+        boolean knownOperator = operatorClass == EqualityOperator.class || operatorClass == GreaterThanOperator.class
+                || operatorClass == LessThanOperator.class || operatorClass == RegexOperator.class;
+        if (!knownOperator) {
+            return new InterpretedPredicate(simple);
+        }
+
+        switch (attribute) {
+            case SIZE -> {
+                if (!(expected instanceof Integer value) || operator instanceof RegexOperator) break;
+                if (operator instanceof GreaterThanOperator) return new SizeComparisonPredicate(SizeComparisonPredicate.Kind.GREATER, value);
+                if (operator instanceof LessThanOperator) return new SizeComparisonPredicate(SizeComparisonPredicate.Kind.LESS, value);
+                return new SizeComparisonPredicate(SizeComparisonPredicate.Kind.EQUAL, value);
+            }
+            case IS_DIRECTORY -> {
+                if (expected instanceof Boolean value && operator instanceof EqualityOperator) return new DirectoryPredicate(value);
+            }
+            case FILENAME, OWNER -> {
+                if (!(expected instanceof String value)) break;
+                if (operator instanceof EqualityOperator) return new StringEqualsPredicate(attribute, value);
+                if (operator instanceof RegexOperator) return new RegexPredicate(attribute, value);
+            }
+        }
+        return new InterpretedPredicate(simple);
     }
 }
 
@@ -151,79 +450,1715 @@ class RegexOperator<T extends String> implements ComparisonOperator<T> {
 class FileSearchCriteria {
     private final Predicate predicate;
     public FileSearchCriteria(Predicate predicate) {
-        this.predicate = predicate;
+        this.predicate = PredicateCompiler.compile(predicate);
     }
 
     public boolean isMatch(File file) {
         return predicate.isMatch(file);
     }
+
+    public Predicate getPredicate() {
+        return predicate;
+    }
 }
 
-class FileSearch {
-    public List<File> search(File root, FileSearchCriteria criteria) {
+// Secondary indexes over one tree, kept current by File.addEntry once the root is indexed. Lookups
+// return copies taken under the lock, never views of the live buckets.
+class FileAttributeIndex {
+    private final Map<String, List<File>> byOwner = new HashMap<>();
+    private final Map<String, List<File>> byFilename = new HashMap<>();
+    private final TreeMap<Integer, List<File>> bySize = new TreeMap<>();
+    private final Map<String, List<File>> byFilenameTrigram = new HashMap<>();
+    private int fileCount;
+
+    public FileAttributeIndex(File root) {
+        if (root instanceof ColumnarFileView) {
+            // Views are transient flyweights and their addEntry writes straight to the tree, so an
+            // index over one would neither stick nor hear about new entries
+            throw new IllegalArgumentException("A columnar tree can't be indexed; scan it with ColumnarSearchTask");
+        }
+        addSubtree(root);
+    }
+
+    public synchronized void addSubtree(File root) {
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            File file = pending.pop();
+            if (!register(file)) continue;
+            add(file);
+            for (File child : file.getEntries()) {
+                pending.push(child);
+            }
+        }
+    }
+
+    // Copy-on-write, so File.addEntry can walk a file's indexes without locking
+    private boolean register(File file) {
+        synchronized (file) {
+            if (file.indexes.contains(this)) return false;
+            List<FileAttributeIndex> indexes = new ArrayList<>(file.indexes.size() + 1);
+            indexes.addAll(file.indexes);
+            indexes.add(this);
+            file.indexes = indexes;
+            return true;
+        }
+    }
+
+    private void add(File file) {
+        fileCount++;
+        byOwner.computeIfAbsent(file.getOwner(), k -> new ArrayList<>()).add(file);
+        byFilename.computeIfAbsent(file.getFilename(), k -> new ArrayList<>()).add(file);
+        bySize.computeIfAbsent(file.getSize(), k -> new ArrayList<>()).add(file);
+        String name = file.getFilename();
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            trigrams.add(name.substring(i, i + 3));
+        }
+        for (String trigram : trigrams) {
+            byFilenameTrigram.computeIfAbsent(trigram, k -> new ArrayList<>()).add(file);
+        }
+    }
+
+    public synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    public synchronized List<File> byOwner(String owner) {
+        return new ArrayList<>(byOwner.getOrDefault(owner, List.of()));
+    }
+
+    public synchronized List<File> byFilename(String filename) {
+        return new ArrayList<>(byFilename.getOrDefault(filename, List.of()));
+    }
+
+    public synchronized List<File> bySize(int fromInclusive, int toInclusive) {
         List<File> files = new ArrayList<>();
+        if (fromInclusive > toInclusive) return files;
+        for (List<File> bucket : bySize.subMap(fromInclusive, true, toInclusive, true).values()) {
+            files.addAll(bucket);
+        }
+        return files;
+    }
 
-        Queue<File> queue = new LinkedList<>();
-        queue.add(root);
-        while (!queue.isEmpty()) {
-            File file = queue.poll();
+    // Files whose name could contain the literal, narrowed by its rarest trigram
+    public synchronized List<File> byFilenameSubstring(String literal) {
+        List<File> rarest = null;
+        for (int i = 0; i + 3 <= literal.length(); i++) {
+            List<File> files = byFilenameTrigram.getOrDefault(literal.substring(i, i + 3), List.of());
+            if (rarest == null || files.size() < rarest.size()) {
+                rarest = files;
+            }
+        }
+        List<File> candidates = new ArrayList<>();
+        for (File file : rarest) {
+            if (file.getFilename().contains(literal)) {
+                candidates.add(file);
+            }
+        }
+        return candidates;
+    }
+}
+
+class IndexedFileSearch {
+    // Beyond this fraction of the tree a plain scan is cheaper than chasing index entries
+    private static final double SCAN_THRESHOLD = 0.25;
+
+    private final File root;
+    private final FileAttributeIndex index;
+
+    public IndexedFileSearch(File root) {
+        this.root = root;
+        this.index = new FileAttributeIndex(root);
+    }
+
+    public List<File> search(FileSearchCriteria criteria) {
+        Collection<File> candidates = candidates(criteria.getPredicate());
+        if (candidates == null || candidates.size() > index.getFileCount() * SCAN_THRESHOLD) {
+            return new FileSearch().search(root, criteria);
+        }
+        List<File> files = new ArrayList<>();
+        for (File file : candidates) {
             if (criteria.isMatch(file)) {
                 files.add(file);
             }
-            for(File child : file.getEntries()){
-                queue.add(child);
-            }
         }
         return files;
     }
+
+    // A superset of the matching files, or null when the predicate needs a full scan
+    Collection<File> candidates(Predicate predicate) {
+        if (predicate instanceof SizeComparisonPredicate size) {
+            int from = size.kind == SizeComparisonPredicate.Kind.GREATER ? size.value + 1
+                    : size.kind == SizeComparisonPredicate.Kind.LESS ? Integer.MIN_VALUE : size.value;
+            int to = size.kind == SizeComparisonPredicate.Kind.LESS ? size.value - 1
+                    : size.kind == SizeComparisonPredicate.Kind.GREATER ? Integer.MAX_VALUE : size.value;
+            if (size.kind == SizeComparisonPredicate.Kind.GREATER && size.value == Integer.MAX_VALUE) return List.of();
+            if (size.kind == SizeComparisonPredicate.Kind.LESS && size.value == Integer.MIN_VALUE) return List.of();
+            return index.bySize(from, to);
+        }
+        if (predicate instanceof StringEqualsPredicate equals) {
+            return equals.attribute == FileAttribute.OWNER ? index.byOwner(equals.value) : index.byFilename(equals.value);
+        }
+        if (predicate instanceof RegexPredicate regex && regex.attribute == FileAttribute.FILENAME) {
+            String literal = requiredLiteral(regex.regex);
+            return literal == null ? null : index.byFilenameSubstring(literal);
+        }
+        if (predicate instanceof CompiledAndPredicate and) {
+            Collection<File> smallest = null;
+            for (CompiledPredicate operand : and.operands) {
+                Collection<File> files = candidates(operand);
+                if (files != null && (smallest == null || files.size() < smallest.size())) {
+                    smallest = files;
+                }
+            }
+            return smallest;
+        }
+        if (predicate instanceof CompiledOrPredicate or) {
+            Set<File> union = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (CompiledPredicate operand : or.operands) {
+                Collection<File> files = candidates(operand);
+                if (files == null) return null;
+                union.addAll(files);
+            }
+            return union;
+        }
+        return null;
+    }
+
+    // Longest run of characters every match must contain, only for regexes without alternation.
+    // Anything whose meaning the scan below doesn't model returns null so the planner falls back
+    // to a full scan: inline flags like (?i), {n,m} quantifiers, and escapes such as \Q..\E, \p{..},
+    // \x41 or back references, whose letters and digits are not literal text.
+    static String requiredLiteral(String regex) {
+        if (regex.indexOf('|') >= 0 || regex.indexOf('{') >= 0 || regex.contains("(?")) return null;
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char literal = 0;
+            int next = i + 1;
+            if (c == '\\') {
+                if (next == regex.length()) return null;
+                char escaped = regex.charAt(next);
+                next++;
+                if (Character.isLetterOrDigit(escaped)) return null;
+                literal = escaped;
+            } else if (c == '[') {
+                next = skipCharacterClass(regex, next);
+                if (next < 0) return null;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (".^$+*?{}".indexOf(c) < 0) {
+                literal = c;
+            }
+
+            char quantifier = next < regex.length() ? regex.charAt(next) : 0;
+            boolean optional = quantifier == '?' || quantifier == '*' || quantifier == '{';
+            if (literal != 0 && depth == 0 && !optional) {
+                run.append(literal);
+            }
+            if (literal == 0 || depth != 0 || optional || quantifier == '+') {
+                if (run.length() > best.length()) best = run.toString();
+                run.setLength(0);
+            }
+            i = next;
+        }
+        if (run.length() > best.length()) best = run.toString();
+        return best.length() >= 3 ? best : null;
+    }
+
+    // Index just past the ']' closing a class that opens before from, or -1 if it can't be found
+    private static int skipCharacterClass(String regex, int from) {
+        int i = from;
+        if (i < regex.length() && regex.charAt(i) == '^') i++;
+        // A ']' right after the opening bracket is a member, not the end
+        if (i < regex.length() && regex.charAt(i) == ']') i++;
+        int depth = 1;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') depth++;
+            if (c == ']' && --depth == 0) return i + 1;
+            i++;
+        }
+        return -1;
+    }
 }
 
+// Struct-of-arrays tree: one int row per node with first-child/next-sibling links, owners
+// dictionary encoded and all names packed into a single UTF-8 pool.
+class ColumnarFileTree {
+    private int count;
+    private int[] parents = new int[1024];
+    private int[] firstChildren = new int[1024];
+    private int[] nextSiblings = new int[1024];
+    private int[] sizes = new int[1024];
+    private int[] ownerIds = new int[1024];
+    private int[] nameOffsets = new int[1025];
+    private BitSet directories = new BitSet();
+    private byte[] namePool = new byte[16 * 1024];
+    private final List<String> owners = new ArrayList<>();
+    private final Map<String, Integer> ownerIdsByName = new HashMap<>();
 
+    public static ColumnarFileTree fromFile(File root) {
+        ColumnarFileTree tree = new ColumnarFileTree();
+        tree.addSubtree(-1, root);
+        return tree;
+    }
 
+    // Copies a File tree in under parent, returns the node id of its root
+    public int addSubtree(int parent, File root) {
+        ArrayDeque<File> files = new ArrayDeque<>();
+        ArrayDeque<Integer> parentNodes = new ArrayDeque<>();
+        files.push(root);
+        parentNodes.push(parent);
+        int rootNode = -1;
+        while (!files.isEmpty()) {
+            File file = files.pop();
+            int node = add(parentNodes.pop(), file.isDirectory(), file.getFilename(), file.getSize(), file.getOwner());
+            if (rootNode < 0) rootNode = node;
+            for (File child : file.getEntries()) {
+                files.push(child);
+                parentNodes.push(node);
+            }
+        }
+        return rootNode;
+    }
 
-public class UnixFileSearch {
-    public static void main(String[] args) {
-        File root = new File(true, "root", 10, "devansh");
-        File childA = new File(false, "adam", 200, "adam");
-        File childB = new File(false, "bob", 300, "bob");
+    // Returns the new node id; parent -1 creates the root
+    public int add(int parent, boolean isDirectory, String filename, int size, String owner) {
+        if (count == parents.length) {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            ownerIds = Arrays.copyOf(ownerIds, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        }
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int nameStart = nameOffsets[count];
+        if (nameStart + name.length > namePool.length) {
+            namePool = Arrays.copyOf(namePool, Math.max(namePool.length * 2, nameStart + name.length));
+        }
+        System.arraycopy(name, 0, namePool, nameStart, name.length);
 
-        root.addEntry(childA);
-        root.addEntry(childB);
+        int node = count++;
+        parents[node] = parent;
+        firstChildren[node] = -1;
+        nextSiblings[node] = -1;
+        if (parent >= 0) {
+            nextSiblings[node] = firstChildren[parent];
+            firstChildren[parent] = node;
+        }
+        directories.set(node, isDirectory);
+        sizes[node] = size;
+        ownerIds[node] = ownerIdsByName.computeIfAbsent(owner, k -> {
+            owners.add(k);
+            return owners.size() - 1;
+        });
+        nameOffsets[node + 1] = nameStart + name.length;
+        return node;
+    }
 
-        Predicate size100 = new SimplePredicate<>(FileAttribute.SIZE, new GreaterThanOperator<>(), 100);
-        Predicate size150 = new SimplePredicate<>(FileAttribute.SIZE, new GreaterThanOperator<>(), 150);
-        Predicate size300 = new SimplePredicate<>(FileAttribute.SIZE, new LessThanOperator<>(), 300);
-        Predicate ownerBob = new SimplePredicate<>(FileAttribute.OWNER, new EqualityOperator<>(), "bob");
-        Predicate ownerAdam = new SimplePredicate<>(FileAttribute.OWNER, new EqualityOperator<>(), "adam");
+    public int getCount() {
+        return count;
+    }
+    public int getParent(int node) {
+        return parents[node];
+    }
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+    // Child node ids without creating views; hot loops use getFirstChild/getNextSibling directly
+    public PrimitiveIterator.OfInt children(int node) {
+        return new PrimitiveIterator.OfInt() {
+            private int next = firstChildren[node];
 
-        List<Predicate> firstConditions = new ArrayList<>();
-        firstConditions.add(size100);
-        firstConditions.add(ownerBob);
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
 
-        Predicate AndFirst = new AndPredicate(firstConditions);
+            @Override
+            public int nextInt() {
+                if (next < 0) throw new NoSuchElementException();
+                int child = next;
+                next = nextSiblings[child];
+                return child;
+            }
+        };
+    }
+    public boolean isDirectory(int node) {
+        return directories.get(node);
+    }
+    public int getSize(int node) {
+        return sizes[node];
+    }
+    public String getOwner(int node) {
+        return owners.get(ownerIds[node]);
+    }
+    public String getFilename(int node) {
+        int start = nameOffsets[node];
+        return new String(namePool, start, nameOffsets[node + 1] - start, StandardCharsets.UTF_8);
+    }
 
-        List<Predicate> secondConditions = new ArrayList<>();
-        secondConditions.add(size150);
-        secondConditions.add(ownerAdam);
-        secondConditions.add(size300);
+    public ColumnarFileView view(int node) {
+        return new ColumnarFileView(this).moveTo(node);
+    }
+}
 
-        Predicate AndSecond = new AndPredicate(secondConditions);
+// Flyweight File over a ColumnarFileTree row so existing predicates run unchanged. Scans reuse
+// one view and move it from row to row. getEntries() is a live set over the row's children;
+// adding to it, like addEntry, copies the file's subtree into the tree. Views can't carry a
+// FileAttributeIndex, which rejects them; columnar trees are searched by scanning.
+class ColumnarFileView extends File {
+    private final ColumnarFileTree tree;
+    private final Set<File> children = new AbstractSet<>() {
+        @Override
+        public Iterator<File> iterator() {
+            PrimitiveIterator.OfInt nodes = tree.children(node);
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return nodes.hasNext();
+                }
 
-        List<Predicate> OrOuter = new ArrayList<>();
-        OrOuter.add(AndSecond);
-        OrOuter.add(AndFirst);
+                @Override
+                public File next() {
+                    return tree.view(nodes.nextInt());
+                }
+            };
+        }
 
-        Predicate OrMain = new OrPredicate(OrOuter);
+        @Override
+        public int size() {
+            int count = 0;
+            for (int child = tree.getFirstChild(node); child >= 0; child = tree.getNextSibling(child)) {
+                count++;
+            }
+            return count;
+        }
 
-        FileSearchCriteria criteria = new FileSearchCriteria(OrMain);
+        @Override
+        public boolean add(File file) {
+            tree.addSubtree(node, file);
+            return true;
+        }
+    };
+    private int node;
+    private String filename;
 
-        FileSearch fileSearch = new FileSearch();
+    public ColumnarFileView(ColumnarFileTree tree) {
+        super(false, null, 0, null, null);
+        this.tree = tree;
+    }
 
-        List<File> files = fileSearch.search(root, criteria);
+    public ColumnarFileView moveTo(int node) {
+        this.node = node;
+        this.filename = null;
+        return this;
+    }
 
-        for(File file : files){
-            System.out.println(file.getFilename());
+    public ColumnarFileTree getTree() {
+        return tree;
+    }
+    public int getNode() {
+        return node;
+    }
+    @Override
+    public boolean isDirectory() {
+        return tree.isDirectory(node);
+    }
+    // Decoded lazily, most predicates never look at the name
+    @Override
+    public String getFilename() {
+        if (filename == null) {
+            filename = tree.getFilename(node);
         }
+        return filename;
+    }
+    @Override
+    public int getSize() {
+        return tree.getSize(node);
+    }
+    @Override
+    public String getOwner() {
+        return tree.getOwner(node);
+    }
+    @Override
+    public Set<File> getEntries() {
+        return children;
+    }
+    @Override
+    public void addEntry(File file) {
+        children.add(file);
+    }
+}
+
+enum TraversalOrder {
+    BFS,
+    DFS
+}
+
+// Opaque resume point: the unexpanded frontier plus a match that was found but not yet handed out
+class FileSearchCursor {
+    final TraversalOrder order;
+    final ArrayDeque<File> frontier;
+    final File pendingMatch;
+
+    FileSearchCursor(TraversalOrder order, ArrayDeque<File> frontier, File pendingMatch) {
+        this.order = order;
+        this.frontier = frontier;
+        this.pendingMatch = pendingMatch;
+    }
+}
+
+class FileSearchPage {
+    private final List<File> files;
+    private final FileSearchCursor nextCursor;
+
+    public FileSearchPage(List<File> files, FileSearchCursor nextCursor) {
+        this.files = files;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<File> getFiles() {
+        return files;
+    }
+    // null once the traversal is exhausted
+    public FileSearchCursor getNextCursor() {
+        return nextCursor;
+    }
+}
+
+// Lazy traversal, memory is bounded by the frontier rather than the number of matches
+class FileSearchIterator implements Iterator<File> {
+    private final TraversalOrder order;
+    private final ArrayDeque<File> frontier;
+    private final FileSearchCriteria criteria;
+    private File nextMatch;
+
+    public FileSearchIterator(File root, FileSearchCriteria criteria, TraversalOrder order) {
+        this.order = order;
+        this.criteria = criteria;
+        this.frontier = new ArrayDeque<>();
+        frontier.add(root);
+    }
+
+    public FileSearchIterator(FileSearchCursor cursor, FileSearchCriteria criteria) {
+        this.order = cursor.order;
+        this.criteria = criteria;
+        this.frontier = new ArrayDeque<>(cursor.frontier);
+        this.nextMatch = cursor.pendingMatch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextMatch == null && !frontier.isEmpty()) {
+            File file = frontier.poll();
+            for (File child : file.getEntries()) {
+                if (order == TraversalOrder.BFS) {
+                    frontier.addLast(child);
+                } else {
+                    frontier.push(child);
+                }
+            }
+            if (criteria.isMatch(file)) {
+                nextMatch = file;
+            }
+        }
+        return nextMatch != null;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        File file = nextMatch;
+        nextMatch = null;
+        return file;
+    }
+
+    public FileSearchCursor getCursor() {
+        return new FileSearchCursor(order, new ArrayDeque<>(frontier), nextMatch);
+    }
+}
+
+class FileSearch {
+    public Iterator<File> iterator(File root, FileSearchCriteria criteria, TraversalOrder order) {
+        return new FileSearchIterator(root, criteria, order);
+    }
+
+    public Stream<File> stream(File root, FileSearchCriteria criteria, TraversalOrder order) {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterator(root, criteria, order), Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+    }
+
+    public FileSearchPage search(File root, FileSearchCriteria criteria, TraversalOrder order, int limit) {
+        return nextPage(new FileSearchIterator(root, criteria, order), limit);
+    }
+
+    public FileSearchPage search(FileSearchCursor cursor, FileSearchCriteria criteria, int limit) {
+        return nextPage(new FileSearchIterator(cursor, criteria), limit);
+    }
+
+    private FileSearchPage nextPage(FileSearchIterator iterator, int limit) {
+        List<File> files = new ArrayList<>();
+        while (files.size() < limit && iterator.hasNext()) {
+            files.add(iterator.next());
+        }
+        return new FileSearchPage(files, iterator.hasNext() ? iterator.getCursor() : null);
+    }
+
+    // Rows are scanned in storage order with a single reused view, only matches get their own view
+    public List<File> search(ColumnarFileTree tree, FileSearchCriteria criteria) {
+        List<File> files = new ArrayList<>();
+        ColumnarFileView view = new ColumnarFileView(tree);
+        for (int node = 0; node < tree.getCount(); node++) {
+            if (criteria.isMatch(view.moveTo(node))) {
+                files.add(tree.view(node));
+            }
+        }
+        return files;
+    }
+
+    public List<File> search(ColumnarFileTree tree, int root, FileSearchCriteria criteria) {
+        List<File> files = new ArrayList<>();
+        ColumnarFileView view = new ColumnarFileView(tree);
+        int[] stack = new int[64];
+        int depth = 0;
+        stack[depth++] = root;
+        while (depth > 0) {
+            int node = stack[--depth];
+            if (criteria.isMatch(view.moveTo(node))) {
+                files.add(tree.view(node));
+            }
+            for (int child = tree.getFirstChild(node); child >= 0; child = tree.getNextSibling(child)) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = child;
+            }
+        }
+        return files;
+    }
+
+    public List<File> search(FileCatalog catalog, FileSearchCriteria criteria) {
+        List<File> files = new ArrayList<>();
+        for (int row = 0; row < catalog.getCount(); row++) {
+            if (!NamePrefilter.mayMatch(criteria.getPredicate(), catalog.getFilename(row))) continue;
+            File file = catalog.toFile(row);
+            if (criteria.isMatch(file)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    public List<File> search(File root, FileSearchCriteria criteria) {
+        if (root instanceof ColumnarFileView view) {
+            return search(view.getTree(), view.getNode(), criteria);
+        }
+        List<File> files = new ArrayList<>();
+
+        Queue<File> queue = new LinkedList<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            File file = queue.poll();
+            if (criteria.isMatch(file)) {
+                files.add(file);
+            }
+            for(File child : file.getEntries()){
+                queue.add(child);
+            }
+        }
+        return files;
+    }
+}
+
+
+// Work stealing traversal: each task walks its own stack of subtrees and hands half of it
+// to the pool whenever idle workers could pick it up.
+class FileSearchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayDeque<File> pending;
+    private final FileSearchCriteria criteria;
+    private final Consumer<File> sink;
+
+    public FileSearchTask(ArrayDeque<File> pending, FileSearchCriteria criteria, Consumer<File> sink) {
+        this.pending = pending;
+        this.criteria = criteria;
+        this.sink = sink;
+    }
+
+    @Override
+    protected void compute() {
+        List<FileSearchTask> forked = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            if (pending.size() > 1 && getSurplusQueuedTaskCount() <= 2) {
+                ArrayDeque<File> split = new ArrayDeque<>();
+                int half = pending.size() / 2;
+                for (int i = 0; i < half; i++) {
+                    split.add(pending.pollLast());
+                }
+                FileSearchTask task = new FileSearchTask(split, criteria, sink);
+                task.fork();
+                forked.add(task);
+            }
+            File file = pending.poll();
+            if (criteria.isMatch(file)) {
+                sink.accept(file);
+            }
+            for (File child : file.getEntries()) {
+                pending.push(child);
+            }
+        }
+        for (FileSearchTask task : forked) {
+            task.join();
+        }
+    }
+}
+
+// FileSearchTask over node ids: one reused view per task, a view of its own only per match
+class ColumnarSearchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ColumnarFileTree tree;
+    private int[] stack;
+    private int depth;
+    private final FileSearchCriteria criteria;
+    private final Consumer<File> sink;
+
+    public ColumnarSearchTask(ColumnarFileTree tree, int[] stack, int depth, FileSearchCriteria criteria, Consumer<File> sink) {
+        this.tree = tree;
+        this.stack = stack;
+        this.depth = depth;
+        this.criteria = criteria;
+        this.sink = sink;
+    }
+
+    @Override
+    protected void compute() {
+        List<ColumnarSearchTask> forked = new ArrayList<>();
+        ColumnarFileView view = new ColumnarFileView(tree);
+        while (depth > 0) {
+            if (depth > 1 && getSurplusQueuedTaskCount() <= 2) {
+                // The bottom of the stack holds the oldest, typically largest, subtrees
+                int half = depth / 2;
+                ColumnarSearchTask task = new ColumnarSearchTask(tree, Arrays.copyOf(stack, Math.max(half, 16)), half, criteria, sink);
+                System.arraycopy(stack, half, stack, 0, depth - half);
+                depth -= half;
+                task.fork();
+                forked.add(task);
+            }
+            int node = stack[--depth];
+            if (criteria.isMatch(view.moveTo(node))) {
+                sink.accept(tree.view(node));
+            }
+            for (int child = tree.getFirstChild(node); child >= 0; child = tree.getNextSibling(child)) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(16, depth * 2));
+                }
+                stack[depth++] = child;
+            }
+        }
+        for (ColumnarSearchTask task : forked) {
+            task.join();
+        }
+    }
+}
+
+class ParallelFileSearch {
+    private final ForkJoinPool pool;
+
+    public ParallelFileSearch(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public List<File> search(File root, FileSearchCriteria criteria) {
+        ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<>();
+        search(root, criteria, files::add);
+        return new ArrayList<>(files);
+    }
+
+    // The callback is invoked from worker threads and has to be thread safe
+    public void search(File root, FileSearchCriteria criteria, Consumer<File> callback) {
+        if (root instanceof ColumnarFileView view) {
+            pool.invoke(new ColumnarSearchTask(view.getTree(), new int[]{view.getNode()}, 1, criteria, callback));
+            return;
+        }
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.add(root);
+        pool.invoke(new FileSearchTask(pending, criteria, callback));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
+
+class SizeAggregate {
+    private long count;
+    private long sum;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    public void add(int size) {
+        count++;
+        sum += size;
+        min = Math.min(min, size);
+        max = Math.max(max, size);
+    }
+
+    public void merge(SizeAggregate other) {
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+    public long getSum() {
+        return sum;
+    }
+    public int getMin() {
+        return min;
+    }
+    public int getMax() {
+        return max;
+    }
+}
+
+class DirectorySize {
+    private final File directory;
+    private final long totalSize;
+
+    public DirectorySize(File directory, long totalSize) {
+        this.directory = directory;
+        this.totalSize = totalSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+    public long getTotalSize() {
+        return totalSize;
+    }
+}
+
+// Partial result of one subtree; workers build their own and merge them bottom up
+class FileAggregationReport {
+    private final Map<Object, SizeAggregate> groups = new HashMap<>();
+    private final PriorityQueue<File> largestFiles = new PriorityQueue<>(Comparator.comparingInt(File::getSize));
+    private final PriorityQueue<DirectorySize> largestDirectories = new PriorityQueue<>(Comparator.comparingLong(DirectorySize::getTotalSize));
+    private final int k;
+    private long totalSize;
+
+    FileAggregationReport(int k) {
+        this.k = k;
+    }
+
+    // Directories can match and be grouped, but only files compete for the largest files
+    void addMatch(Object group, File file) {
+        groups.computeIfAbsent(group, key -> new SizeAggregate()).add(file.getSize());
+        if (!file.isDirectory()) {
+            offer(largestFiles, file);
+        }
+    }
+
+    void addDirectory(File directory, long size) {
+        offer(largestDirectories, new DirectorySize(directory, size));
+    }
+
+    void merge(FileAggregationReport other) {
+        for (Map.Entry<Object, SizeAggregate> entry : other.groups.entrySet()) {
+            groups.computeIfAbsent(entry.getKey(), key -> new SizeAggregate()).merge(entry.getValue());
+        }
+        for (File file : other.largestFiles) {
+            offer(largestFiles, file);
+        }
+        for (DirectorySize directory : other.largestDirectories) {
+            offer(largestDirectories, directory);
+        }
+    }
+
+    // Bounded min-heap: keeps the k largest seen so far
+    private <T> void offer(PriorityQueue<T> heap, T value) {
+        if (k <= 0) return;
+        heap.add(value);
+        if (heap.size() > k) {
+            heap.poll();
+        }
+    }
+
+    void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+    public Map<Object, SizeAggregate> getGroups() {
+        return groups;
+    }
+    public List<File> getLargestFiles() {
+        List<File> files = new ArrayList<>(largestFiles);
+        files.sort(Comparator.comparingInt(File::getSize).reversed());
+        return files;
+    }
+    public List<DirectorySize> getLargestDirectories() {
+        List<DirectorySize> directories = new ArrayList<>(largestDirectories);
+        directories.sort(Comparator.comparingLong(DirectorySize::getTotalSize).reversed());
+        return directories;
+    }
+}
+
+// du-style rollup: a directory's total is its own size plus the totals of everything below it,
+// computed in one post-order pass. Matching files are also grouped by an attribute on the way.
+class FileAggregator {
+    // Subtrees below this depth are rolled up sequentially so deep trees don't nest joins
+    private static final int FORK_DEPTH = 16;
+
+    private final ForkJoinPool pool;
+
+    public FileAggregator(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public FileAggregationReport aggregate(File root, FileSearchCriteria criteria, FileAttribute groupBy, int k) {
+        return pool.invoke(new AggregationTask(root, 0, criteria, groupBy, k));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static class AggregationTask extends RecursiveTask<FileAggregationReport> {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+        private final int depth;
+        private final FileSearchCriteria criteria;
+        private final FileAttribute groupBy;
+        private final int k;
+
+        AggregationTask(File directory, int depth, FileSearchCriteria criteria, FileAttribute groupBy, int k) {
+            this.directory = directory;
+            this.depth = depth;
+            this.criteria = criteria;
+            this.groupBy = groupBy;
+            this.k = k;
+        }
+
+        @Override
+        protected FileAggregationReport compute() {
+            FileAggregationReport report = new FileAggregationReport(k);
+            if (depth >= FORK_DEPTH) {
+                report.setTotalSize(rollUp(directory, report));
+                return report;
+            }
+            long total = directory.getSize();
+            visit(directory, report);
+            List<AggregationTask> subtasks = new ArrayList<>();
+            for (File child : directory.getEntries()) {
+                if (child.getEntries().isEmpty()) {
+                    total += child.getSize();
+                    visit(child, report);
+                    if (child.isDirectory()) report.addDirectory(child, child.getSize());
+                } else {
+                    subtasks.add(new AggregationTask(child, depth + 1, criteria, groupBy, k));
+                }
+            }
+            for (AggregationTask subtask : invokeAll(subtasks)) {
+                FileAggregationReport partial = subtask.join();
+                total += partial.getTotalSize();
+                report.merge(partial);
+            }
+            // The root of the aggregation may be a plain file
+            if (directory.isDirectory()) {
+                report.addDirectory(directory, total);
+            }
+            report.setTotalSize(total);
+            return report;
+        }
+
+        private void visit(File file, FileAggregationReport report) {
+            if (criteria == null || criteria.isMatch(file)) {
+                report.addMatch(file.extractAttribute(groupBy), file);
+            }
+        }
+
+        // Iterative post-order over one subtree, returns its total size
+        private long rollUp(File root, FileAggregationReport report) {
+            ArrayDeque<File> directories = new ArrayDeque<>();
+            ArrayDeque<Iterator<File>> iterators = new ArrayDeque<>();
+            ArrayDeque<long[]> totals = new ArrayDeque<>();
+            visit(root, report);
+            directories.push(root);
+            iterators.push(root.getEntries().iterator());
+            totals.push(new long[]{root.getSize()});
+            while (true) {
+                Iterator<File> iterator = iterators.peek();
+                if (iterator.hasNext()) {
+                    File child = iterator.next();
+                    visit(child, report);
+                    directories.push(child);
+                    iterators.push(child.getEntries().iterator());
+                    totals.push(new long[]{child.getSize()});
+                    continue;
+                }
+                File finished = directories.pop();
+                iterators.pop();
+                long total = totals.pop()[0];
+                if (finished.isDirectory()) {
+                    report.addDirectory(finished, total);
+                }
+                if (totals.isEmpty()) {
+                    return total;
+                }
+                totals.peek()[0] += total;
+            }
+        }
+    }
+}
+
+class FileSearchBenchmark {
+    public static void main(String[] args) {
+        int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        Predicate predicate = new AndPredicate(List.of(
+                new SimplePredicate<>(FileAttribute.SIZE, new GreaterThanOperator<>(), 500),
+                new SimplePredicate<>(FileAttribute.FILENAME, new RegexOperator<>(), "f.*7")));
+        FileSearchCriteria criteria = new FileSearchCriteria(predicate);
+
+        run("wide", buildWideTree(1000, 1000), criteria, parallelism);
+        run("deep", buildDeepTree(20000, 50), criteria, parallelism);
+    }
+
+    static void run(String name, File root, FileSearchCriteria criteria, int parallelism) {
+        FileSearch bfs = new FileSearch();
+        ParallelFileSearch parallel = new ParallelFileSearch(parallelism);
+        for (int warmup = 0; warmup < 3; warmup++) {
+            bfs.search(root, criteria);
+            parallel.search(root, criteria);
+        }
+        long start = System.nanoTime();
+        int bfsMatches = bfs.search(root, criteria).size();
+        long bfsMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        int parallelMatches = parallel.search(root, criteria).size();
+        long parallelMillis = (System.nanoTime() - start) / 1_000_000;
+        parallel.shutdown();
+
+        System.out.println(name + ": bfs " + bfsMillis + "ms (" + bfsMatches + " matches), parallel x" + parallelism
+                + " " + parallelMillis + "ms (" + parallelMatches + " matches)");
+    }
+
+    static File buildWideTree(int directories, int filesPerDirectory) {
+        File root = new File(true, "root", 0, "root");
+        for (int d = 0; d < directories; d++) {
+            File dir = new File(true, "d" + d, 0, "root");
+            for (int f = 0; f < filesPerDirectory; f++) {
+                dir.addEntry(new File(false, "f" + f, (d * 31 + f) % 1000, "user" + (f % 10)));
+            }
+            root.addEntry(dir);
+        }
+        return root;
+    }
+
+    static File buildDeepTree(int depth, int filesPerLevel) {
+        File root = new File(true, "root", 0, "root");
+        File current = root;
+        for (int d = 0; d < depth; d++) {
+            File dir = new File(true, "d" + d, 0, "root");
+            for (int f = 0; f < filesPerLevel; f++) {
+                current.addEntry(new File(false, "f" + f, (d * 31 + f) % 1000, "user" + (f % 10)));
+            }
+            current.addEntry(dir);
+            current = dir;
+        }
+        return root;
+    }
+}
+
+
+
+
+
+// Indexed search must return exactly what a full scan returns, including for regexes whose
+// literal-looking parts are really flags, quantifiers or escapes
+class IndexedFileSearchCheck {
+    public static void main(String[] args) {
+        File root = new File(true, "root", 0, "root");
+        for (int i = 0; i < 200; i++) {
+            root.addEntry(new File(false, "file" + i + ".log", i, "user" + (i % 5)));
+        }
+        for (String name : List.of("REPORT.txt", "report.csv", "a".repeat(100), "Abc.txt", "]bcde", "ABCrep", "x41yz")) {
+            root.addEntry(new File(false, name, 1, "user0"));
+        }
+        IndexedFileSearch indexed = new IndexedFileSearch(root);
+        FileSearch scan = new FileSearch();
+        int mismatches = 0;
+        for (String regex : List.of("(?i)report.*", "a{100}", "\\Qreport\\E.*", "\\p{Lu}bc\\.txt", "\\x41BCrep",
+                "[]a]bcde", "file1.*", "rep.*", "x41yz", "file(?:1)2.*")) {
+            FileSearchCriteria criteria = new FileSearchCriteria(new SimplePredicate<>(FileAttribute.FILENAME, new RegexOperator<>(), regex));
+            Set<File> expected = new HashSet<>(scan.search(root, criteria));
+            Set<File> actual = new HashSet<>(indexed.search(criteria));
+            if (!expected.equals(actual)) mismatches++;
+            System.out.println(regex + ": scan " + expected.size() + ", indexed " + actual.size()
+                    + ", literal " + IndexedFileSearch.requiredLiteral(regex));
+        }
+
+        // A second index over the same tree must not take updates away from the first
+        IndexedFileSearch second = new IndexedFileSearch(root);
+        root.addEntry(new File(false, "late-report.txt", 1, "user9"));
+        FileSearchCriteria late = new FileSearchCriteria(new SimplePredicate<>(FileAttribute.OWNER, new EqualityOperator<>(), "user9"));
+        int firstSees = indexed.search(late).size();
+        int secondSees = second.search(late).size();
+        if (firstSees != 1 || secondSees != 1) mismatches++;
+        System.out.println("entry added after two indexes: first " + firstSees + ", second " + secondSees);
+        System.out.println(mismatches == 0 ? "OK" : mismatches + " MISMATCHES");
+    }
+}
+
+// Filename-only view of a compiled predicate: false only when the name alone rules out a match
+class NamePrefilter {
+    public static boolean mayMatch(Predicate predicate, String filename) {
+        if (predicate instanceof StringEqualsPredicate equals && equals.attribute == FileAttribute.FILENAME) {
+            return equals.value.equals(filename);
+        }
+        if (predicate instanceof RegexPredicate regex && regex.attribute == FileAttribute.FILENAME) {
+            return regex.isMatch(new File(false, filename, 0, ""));
+        }
+        if (predicate instanceof CompiledAndPredicate and) {
+            for (CompiledPredicate operand : and.operands) {
+                if (!mayMatch(operand, filename)) return false;
+            }
+            return true;
+        }
+        if (predicate instanceof CompiledOrPredicate or) {
+            for (CompiledPredicate operand : or.operands) {
+                if (mayMatch(operand, filename)) return true;
+            }
+            return false;
+        }
+        return true;
+    }
+}
+
+// Every entry is stat'ed at most once: POSIX attributes carry the owner along with the basic ones.
+// When searching, an entry whose name can't match is only stat'ed to find out whether to descend,
+// and not at all once every subdirectory of its directory has been seen (find's leaf optimisation).
+class FileSystemCrawler {
+    private final ForkJoinPool pool;
+    private final boolean followLinks;
+    private volatile boolean posixAttributes = true;
+
+    public FileSystemCrawler(int parallelism, boolean followLinks) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.followLinks = followLinks;
+    }
+
+    // Mirrors the directory into the in-memory File model
+    public File crawl(Path root) {
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
+        BasicFileAttributes attributes = readAttributes(root);
+        if (attributes == null) return null;
+        File file = toFile(root, attributes);
+        if (attributes.isDirectory() && markVisited(root, attributes, visited)) {
+            pool.invoke(new CrawlTask(root, file, null, null, visited));
+        }
+        return file;
+    }
+
+    // Crawls and filters in one pass; files whose name cannot match are never turned into Files
+    public List<File> search(Path root, FileSearchCriteria criteria) {
+        ConcurrentLinkedQueue<File> matches = new ConcurrentLinkedQueue<>();
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
+        boolean mayMatch = NamePrefilter.mayMatch(criteria.getPredicate(), fileName(root));
+        BasicFileAttributes attributes = mayMatch ? readAttributes(root) : readBasic(root);
+        if (attributes == null) return new ArrayList<>();
+        if (mayMatch) visit(root, attributes, criteria, matches);
+        if (attributes.isDirectory() && markVisited(root, attributes, visited)) {
+            pool.invoke(new CrawlTask(root, null, criteria, matches, visited));
+        }
+        return new ArrayList<>(matches);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // Only called for entries whose name passed the prefilter
+    private void visit(Path path, BasicFileAttributes attributes, FileSearchCriteria criteria, Collection<File> matches) {
+        File file = toFile(path, attributes);
+        if (criteria.isMatch(file)) {
+            matches.add(file);
+        }
+    }
+
+    private boolean markVisited(Path directory, BasicFileAttributes attributes, Set<Object> visited) {
+        // Without a file key (e.g. some non-POSIX file systems) fall back to the real path
+        Object key = attributes.fileKey();
+        if (key == null) {
+            try {
+                key = directory.toRealPath();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return visited.add(key);
+    }
+
+    private BasicFileAttributes readBasic(Path path) {
+        try {
+            return followLinks
+                    ? Files.readAttributes(path, BasicFileAttributes.class)
+                    : Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // One stat for everything a File needs; non-POSIX file systems fall back to basic attributes
+    private BasicFileAttributes readAttributes(Path path) {
+        if (!posixAttributes) return readBasic(path);
+        try {
+            return followLinks
+                    ? Files.readAttributes(path, PosixFileAttributes.class)
+                    : Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException e) {
+            posixAttributes = false;
+            return readBasic(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // A Unix directory has one link for "." and one per subdirectory's "..", so nlink - 2 counts its
+    // subdirectories. -1 when that can't be relied on: following links (links to directories
+    // aren't counted), no unix attribute view, or a file system that reports nlink below 2.
+    private int subdirectoryCount(Path directory) {
+        if (followLinks) return -1;
+        try {
+            int links = (Integer) Files.getAttribute(directory, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+            return links >= 2 ? links - 2 : -1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private File toFile(Path path, BasicFileAttributes attributes) {
+        int size = (int) Math.min(Integer.MAX_VALUE, attributes.size());
+        String owner = attributes instanceof PosixFileAttributes posix
+                ? posix.owner().getName()
+                : readOwner(path, followLinks ? new LinkOption[0] : new LinkOption[]{LinkOption.NOFOLLOW_LINKS});
+        return new File(attributes.isDirectory(), fileName(path), size, owner);
+    }
+
+    static String readOwner(Path path, LinkOption... options) {
+        try {
+            PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class, options);
+            return posix != null
+                    ? posix.readAttributes().owner().getName()
+                    : Files.getOwner(path, options).getName();
+        } catch (IOException | UnsupportedOperationException e) {
+            // owner stays empty for entries we are not allowed to inspect
+            return "";
+        }
+    }
+
+    static String fileName(Path path) {
+        Path name = path.getFileName();
+        return name == null ? path.toString() : name.toString();
+    }
+
+    private class CrawlTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final File node;
+        private final FileSearchCriteria criteria;
+        private final Collection<File> matches;
+        private final Set<Object> visited;
+
+        CrawlTask(Path directory, File node, FileSearchCriteria criteria, Collection<File> matches, Set<Object> visited) {
+            this.directory = directory;
+            this.node = node;
+            this.criteria = criteria;
+            this.matches = matches;
+            this.visited = visited;
+        }
+
+        @Override
+        protected void compute() {
+            List<CrawlTask> subtasks = new ArrayList<>();
+            int subdirectoriesLeft = criteria == null ? -1 : subdirectoryCount(directory);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    boolean mayMatch = criteria == null || NamePrefilter.mayMatch(criteria.getPredicate(), fileName(path));
+                    // Nothing left to descend into and the name rules it out: no stat at all
+                    if (!mayMatch && subdirectoriesLeft == 0) continue;
+                    BasicFileAttributes attributes = mayMatch ? readAttributes(path) : readBasic(path);
+                    if (attributes == null) continue;
+                    if (attributes.isDirectory() && subdirectoriesLeft > 0) subdirectoriesLeft--;
+                    File child = null;
+                    if (criteria == null) {
+                        child = toFile(path, attributes);
+                        node.addEntry(child);
+                    } else if (mayMatch) {
+                        visit(path, attributes, criteria, matches);
+                    }
+                    if (attributes.isDirectory() && markVisited(path, attributes, visited)) {
+                        subtasks.add(new CrawlTask(path, child, criteria, matches, visited));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // unreadable directories are skipped, like find without -L reporting
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
+
+// locate-style snapshot of a directory tree. Rows are in preorder (a parent always precedes its
+// children) and every attribute is its own column, so a saved catalog is memory-mapped on load
+// instead of parsed.
+class FileCatalog {
+    private static final int MAGIC = 0x46434154;
+    private static final int VERSION = 1;
+
+    private final String rootPath;
+    private final int count;
+    private final IntBuffer parents;
+    private final ByteBuffer directoryFlags;
+    private final IntBuffer sizes;
+    private final IntBuffer ownerIds;
+    private final IntBuffer nameOffsets;
+    private final LongBuffer modifiedTimes;
+    private final ByteBuffer names;
+    private final List<String> owners;
+
+    FileCatalog(String rootPath, int count, IntBuffer parents, ByteBuffer directoryFlags, IntBuffer sizes, IntBuffer ownerIds,
+                IntBuffer nameOffsets, LongBuffer modifiedTimes, ByteBuffer names, List<String> owners) {
+        this.rootPath = rootPath;
+        this.count = count;
+        this.parents = parents;
+        this.directoryFlags = directoryFlags;
+        this.sizes = sizes;
+        this.ownerIds = ownerIds;
+        this.nameOffsets = nameOffsets;
+        this.modifiedTimes = modifiedTimes;
+        this.names = names;
+        this.owners = owners;
+    }
+
+    public static FileCatalog build(Path root) {
+        FileCatalogBuilder builder = new FileCatalogBuilder(root.toString());
+        builder.crawl(root, -1, null, -1);
+        return builder.build();
+    }
+
+    // Only directories whose mtime changed are listed again; rows under unchanged directories are
+    // copied as they are. Like locate, size/owner edits that leave the directory untouched are
+    // picked up once that directory changes or the catalog is rebuilt.
+    public FileCatalog refresh() {
+        FileCatalogBuilder builder = new FileCatalogBuilder(rootPath);
+        builder.crawl(Path.of(rootPath), -1, this, 0);
+        return builder.build();
+    }
+
+    public static FileCatalog load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a file catalog: " + file);
+            }
+            int count = buffer.getInt();
+            int namesLength = buffer.getInt();
+            String rootPath = readString(buffer);
+            int ownerCount = buffer.getInt();
+            List<String> owners = new ArrayList<>(ownerCount);
+            for (int i = 0; i < ownerCount; i++) {
+                owners.add(readString(buffer));
+            }
+            LongBuffer modifiedTimes = slice(buffer, count * 8L).asLongBuffer();
+            IntBuffer parents = slice(buffer, count * 4L).asIntBuffer();
+            IntBuffer sizes = slice(buffer, count * 4L).asIntBuffer();
+            IntBuffer ownerIds = slice(buffer, count * 4L).asIntBuffer();
+            IntBuffer nameOffsets = slice(buffer, (count + 1) * 4L).asIntBuffer();
+            ByteBuffer directoryFlags = slice(buffer, count);
+            ByteBuffer names = slice(buffer, namesLength);
+            return new FileCatalog(rootPath, count, parents, directoryFlags, sizes, ownerIds, nameOffsets, modifiedTimes, names, owners);
+        }
+    }
+
+    // Written to a sibling temp file and renamed over the target: truncating a catalog that is still
+    // mapped by load() would fault its readers, and a crash mid-write must not leave a torn catalog
+    public void save(Path file) throws IOException {
+        byte[] root = rootPath.getBytes(StandardCharsets.UTF_8);
+        long headerSize = 24 + root.length;
+        for (String owner : owners) {
+            headerSize += 4 + owner.getBytes(StandardCharsets.UTF_8).length;
+        }
+        long size = headerSize + count * 21L + (count + 1) * 4L + names.limit();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(names.limit());
+            writeString(buffer, rootPath);
+            buffer.putInt(owners.size());
+            for (String owner : owners) {
+                writeString(buffer, owner);
+            }
+            for (int row = 0; row < count; row++) buffer.putLong(modifiedTimes.get(row));
+            for (int row = 0; row < count; row++) buffer.putInt(parents.get(row));
+            for (int row = 0; row < count; row++) buffer.putInt(sizes.get(row));
+            for (int row = 0; row < count; row++) buffer.putInt(ownerIds.get(row));
+            for (int row = 0; row <= count; row++) buffer.putInt(nameOffsets.get(row));
+            buffer.put(directoryFlags.duplicate().position(0).limit(count));
+            buffer.put(names.duplicate().position(0));
+            buffer.force();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+    public String getRootPath() {
+        return rootPath;
+    }
+    public int getParent(int row) {
+        return parents.get(row);
+    }
+    public boolean isDirectory(int row) {
+        return directoryFlags.get(row) != 0;
+    }
+    public int getSize(int row) {
+        return sizes.get(row);
+    }
+    public String getOwner(int row) {
+        return owners.get(ownerIds.get(row));
+    }
+    public long getModifiedTime(int row) {
+        return modifiedTimes.get(row);
+    }
+    public String getFilename(int row) {
+        int start = nameOffsets.get(row);
+        byte[] bytes = new byte[nameOffsets.get(row + 1) - start];
+        names.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    public String getPath(int row) {
+        Deque<String> parts = new ArrayDeque<>();
+        for (int current = row; current > 0; current = getParent(current)) {
+            parts.push(getFilename(current));
+        }
+        parts.push(rootPath);
+        return String.join("/", parts);
+    }
+
+    public File toFile(int row) {
+        return new File(isDirectory(row), getFilename(row), getSize(row), getOwner(row));
+    }
+
+    // Direct children of each row, built on demand for refresh
+    int[][] childRows() {
+        int[] childCounts = new int[count];
+        for (int row = 1; row < count; row++) childCounts[getParent(row)]++;
+        int[][] children = new int[count][];
+        for (int row = 0; row < count; row++) children[row] = new int[childCounts[row]];
+        int[] filled = new int[count];
+        for (int row = 1; row < count; row++) {
+            int parent = getParent(row);
+            children[parent][filled[parent]++] = row;
+        }
+        return children;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long length) {
+        ByteBuffer slice = buffer.slice(buffer.position(), (int) length);
+        buffer.position(buffer.position() + (int) length);
+        return slice;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+}
+
+class FileCatalogBuilder {
+    private final String rootPath;
+    private int count;
+    private int[] parents = new int[1024];
+    private byte[] directoryFlags = new byte[1024];
+    private int[] sizes = new int[1024];
+    private int[] ownerIds = new int[1024];
+    private int[] nameOffsets = new int[1025];
+    private long[] modifiedTimes = new long[1024];
+    private byte[] names = new byte[16 * 1024];
+    private final List<String> owners = new ArrayList<>();
+    private final Map<String, Integer> ownerIdsByName = new HashMap<>();
+    private int[][] previousChildren;
+
+    public FileCatalogBuilder(String rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    public int add(int parent, boolean isDirectory, String filename, int size, String owner, long modifiedTime) {
+        if (count == parents.length) {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            directoryFlags = Arrays.copyOf(directoryFlags, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            ownerIds = Arrays.copyOf(ownerIds, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+            modifiedTimes = Arrays.copyOf(modifiedTimes, capacity);
+        }
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int nameStart = nameOffsets[count];
+        if (nameStart + name.length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, nameStart + name.length));
+        }
+        System.arraycopy(name, 0, names, nameStart, name.length);
+
+        parents[count] = parent;
+        directoryFlags[count] = (byte) (isDirectory ? 1 : 0);
+        sizes[count] = size;
+        ownerIds[count] = ownerIdsByName.computeIfAbsent(owner, k -> {
+            owners.add(k);
+            return owners.size() - 1;
+        });
+        modifiedTimes[count] = modifiedTime;
+        nameOffsets[count + 1] = nameStart + name.length;
+        return count++;
+    }
+
+    // previousRow points at the same directory in the previous catalog, or -1 for new subtrees
+    void crawl(Path path, int parent, FileCatalog previous, int previousRow) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return;
+        }
+        long modifiedTime = attributes.lastModifiedTime().toMillis();
+        String name = FileSystemCrawler.fileName(path);
+        int size = (int) Math.min(Integer.MAX_VALUE, attributes.size());
+        int row = add(parent, attributes.isDirectory(), name, size, FileSystemCrawler.readOwner(path, LinkOption.NOFOLLOW_LINKS), modifiedTime);
+        if (!attributes.isDirectory()) return;
+
+        if (previous != null && previousRow >= 0 && previousChildren == null) {
+            previousChildren = previous.childRows();
+        }
+        boolean unchanged = previousRow >= 0 && previous.isDirectory(previousRow) && previous.getModifiedTime(previousRow) == modifiedTime;
+        Map<String, Integer> previousByName = new HashMap<>();
+        if (previousRow >= 0) {
+            for (int child : previousChildren[previousRow]) {
+                if (unchanged && !previous.isDirectory(child)) {
+                    add(row, false, previous.getFilename(child), previous.getSize(child), previous.getOwner(child), previous.getModifiedTime(child));
+                } else {
+                    previousByName.put(previous.getFilename(child), child);
+                }
+            }
+        }
+        if (unchanged) {
+            // Entries are the same, but a subdirectory may still have changed underneath
+            for (Map.Entry<String, Integer> entry : previousByName.entrySet()) {
+                crawl(path.resolve(entry.getKey()), row, previous, entry.getValue());
+            }
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path child : stream) {
+                Integer previousChild = previousByName.get(FileSystemCrawler.fileName(child));
+                crawl(child, row, previous, previousChild == null ? -1 : previousChild);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // unreadable directories are kept as empty
+        }
+    }
+
+    public FileCatalog build() {
+        return new FileCatalog(rootPath, count,
+                IntBuffer.wrap(Arrays.copyOf(parents, count)),
+                ByteBuffer.wrap(Arrays.copyOf(directoryFlags, count)),
+                IntBuffer.wrap(Arrays.copyOf(sizes, count)),
+                IntBuffer.wrap(Arrays.copyOf(ownerIds, count)),
+                IntBuffer.wrap(Arrays.copyOf(nameOffsets, count + 1)),
+                LongBuffer.wrap(Arrays.copyOf(modifiedTimes, count)),
+                ByteBuffer.wrap(Arrays.copyOf(names, nameOffsets[count])),
+                List.copyOf(owners));
+    }
+}
+
+class FileSystemCrawlerBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path root = Files.createTempDirectory("crawler-bench");
+        try {
+            generateTree(root, fileCount, 1000);
+            run(root, parallelism);
+        } finally {
+            deleteTree(root);
+        }
+    }
+
+    static void run(Path root, int parallelism) throws IOException, InterruptedException {
+        FileSearchCriteria criteria = new FileSearchCriteria(
+                new SimplePredicate<>(FileAttribute.FILENAME, new RegexOperator<>(), "f.*77"));
+        FileSystemCrawler crawler = new FileSystemCrawler(parallelism, false);
+
+        long start = System.nanoTime();
+        int crawlerMatches = crawler.search(root, criteria).size();
+        long crawlerMillis = (System.nanoTime() - start) / 1_000_000;
+        crawler.shutdown();
+
+        start = System.nanoTime();
+        Process find = new ProcessBuilder("find", root.toString(), "-name", "f*77").redirectErrorStream(true).start();
+        int findMatches = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(find.getInputStream()))) {
+            while (reader.readLine() != null) findMatches++;
+        }
+        find.waitFor();
+        long findMillis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("crawler x" + parallelism + ": " + crawlerMillis + "ms (" + crawlerMatches + " matches), find: "
+                + findMillis + "ms (" + findMatches + " matches)");
+    }
+
+    // Children before parents, so every directory is empty by the time it is deleted
+    static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    static void generateTree(Path root, int fileCount, int filesPerDirectory) throws IOException {
+        Path directory = root;
+        for (int i = 0; i < fileCount; i++) {
+            if (i % filesPerDirectory == 0) {
+                directory = root.resolve("d" + (i / filesPerDirectory) % 100).resolve("d" + i / filesPerDirectory);
+                Files.createDirectories(directory);
+            }
+            Files.write(directory.resolve("f" + i), new byte[i % 7]);
+        }
+    }
+}
+
+public class UnixFileSearch {
+    public static void main(String[] args) {
+        File root = new File(true, "root", 10, "devansh");
+        File childA = new File(false, "adam", 200, "adam");
+        File childB = new File(false, "bob", 300, "bob");
+
+        root.addEntry(childA);
+        root.addEntry(childB);
+
+        Predicate size100 = new SimplePredicate<>(FileAttribute.SIZE, new GreaterThanOperator<>(), 100);
+        Predicate size150 = new SimplePredicate<>(FileAttribute.SIZE, new GreaterThanOperator<>(), 150);
+        Predicate size300 = new SimplePredicate<>(FileAttribute.SIZE, new LessThanOperator<>(), 300);
+        Predicate ownerBob = new SimplePredicate<>(FileAttribute.OWNER, new EqualityOperator<>(), "bob");
+        Predicate ownerAdam = new SimplePredicate<>(FileAttribute.OWNER, new EqualityOperator<>(), "adam");
+
+        List<Predicate> firstConditions = new ArrayList<>();
+        firstConditions.add(size100);
+        firstConditions.add(ownerBob);
+
+        Predicate AndFirst = new AndPredicate(firstConditions);
+
+        List<Predicate> secondConditions = new ArrayList<>();
+        secondConditions.add(size150);
+        secondConditions.add(ownerAdam);
+        secondConditions.add(size300);
+
+        Predicate AndSecond = new AndPredicate(secondConditions);
+
+        List<Predicate> OrOuter = new ArrayList<>();
+        OrOuter.add(AndSecond);
+        OrOuter.add(AndFirst);
+
+        Predicate OrMain = new OrPredicate(OrOuter);
+
+        FileSearchCriteria criteria = new FileSearchCriteria(OrMain);
+
+        FileSearch fileSearch = new FileSearch();
+
+        List<File> files = fileSearch.search(root, criteria);
+
+        for(File file : files){
+            System.out.println(file.getFilename());
+        }
+
+        fileSearch.stream(root, criteria, TraversalOrder.DFS)
+                .limit(1)
+                .forEach(file -> System.out.println("First: " + file.getFilename()));
+
+        FileSearchPage page = fileSearch.search(root, criteria, TraversalOrder.BFS, 1);
+        while (page != null) {
+            for (File file : page.getFiles()) {
+                System.out.println("Page: " + file.getFilename());
+            }
+            page = page.getNextCursor() == null ? null : fileSearch.search(page.getNextCursor(), criteria, 1);
+        }
+
+        ColumnarFileTree columnarTree = ColumnarFileTree.fromFile(root);
+        for (File file : fileSearch.search(columnarTree, criteria)) {
+            System.out.println("Columnar: " + file.getFilename());
+        }
+
+        IndexedFileSearch indexedFileSearch = new IndexedFileSearch(root);
+        root.addEntry(new File(false, "carol", 400, "bob"));
+        for (File file : indexedFileSearch.search(criteria)) {
+            System.out.println("Indexed: " + file.getFilename());
+        }
+
+        FileAggregator aggregator = new FileAggregator(4);
+        FileAggregationReport report = aggregator.aggregate(root, null, FileAttribute.OWNER, 100);
+        aggregator.shutdown();
+        for (Map.Entry<Object, SizeAggregate> group : report.getGroups().entrySet()) {
+            System.out.println("Owner " + group.getKey() + ": " + group.getValue().getSum() + " bytes in " + group.getValue().getCount() + " files");
+        }
+        for (DirectorySize directory : report.getLargestDirectories()) {
+            System.out.println("du " + directory.getDirectory().getFilename() + ": " + directory.getTotalSize());
+        }
+
+        ParallelFileSearch parallelFileSearch = new ParallelFileSearch(4);
+        parallelFileSearch.search(root, criteria, file -> System.out.println("Parallel: " + file.getFilename()));
+        parallelFileSearch.shutdown();
 
     }
 